@@ -39,9 +39,20 @@ public class AsmCoder {
         "M=M+1";
 
     // the segments
-    private final static String ARGUMENT = "argument", LOCAL = "local", STATIC = "static", CONSTANT = "constant",
+    final static String ARGUMENT = "argument", LOCAL = "local", STATIC = "static", CONSTANT = "constant",
             THIS = "this", THAT = "that", POINTER = "pointer", TEMP = "temp";
 
+    // labels for the compact shared routines used by cold functions
+    private final static String SHARED_CALL = "SHARED$CALL", SHARED_RETURN = "SHARED$RETURN";
+    private final static String[] SHARED_COMPARISONS = {"GT", "LT", "EQ"};
+
+    private final Profile profile;
+    private String currentFunctionName;
+    // last label seen in the current function, its branch count can make the code after it hot
+    private String currentLabel;
+    // exit label of the inlined call being written, null when not inside one
+    private String inlinedExitLabel;
+    private boolean usedSharedRoutines = false;
     private int returnAddrCounter = 0;
 
     public List<String> writeBootStrap() {
@@ -57,9 +68,38 @@ public class AsmCoder {
     }
 
     /**
-     * Instantiates a new Asm coder.
+     * Writes the shared routines that cold code jumps to. Must be called after every vm line has been translated, and
+     * returns nothing if no cold code was written. They are only ever jumped to, so they can sit after the last function.
+     *
+     * @return the shared routines
+     */
+    public List<String> writeSharedRoutines() {
+        List<String> instructions = new ArrayList<>();
+        if (usedSharedRoutines) {
+            instructions.add(getSharedCallRoutine());
+            instructions.add("(" + SHARED_RETURN + ")" + System.lineSeparator() + getInlineReturnAsm());
+            for (String jump : SHARED_COMPARISONS) {
+                instructions.add(getSharedComparisonRoutine(jump));
+            }
+        }
+        return instructions;
+    }
+
+    /**
+     * Instantiates a new Asm coder that writes the fast inline form everywhere.
      */
     public AsmCoder() {
+        this(Profile.NONE);
+    }
+
+    /**
+     * Instantiates a new Asm coder that writes the fast inline form in hot functions and jumps to compact shared routines
+     * from cold functions.
+     *
+     * @param profile the execution-count profile
+     */
+    public AsmCoder(Profile profile) {
+        this.profile = profile;
     }
 
     /**
@@ -153,6 +193,9 @@ public class AsmCoder {
         String segment = args.get(1);
         int position = Integer.parseInt(args.get(2));
         String fileName = args.get(3);
+        if (segment.equals(CONSTANT)) {
+            throw new IllegalArgumentException("Cannot pop to the constant segment");
+        }
         StringBuilder popBuilder = new StringBuilder();
         popBuilder.append(getSegmentTranslation(popType, segment, position, fileName));
         if (!segment.equals(POINTER)) {
@@ -175,7 +218,8 @@ public class AsmCoder {
      * Function that reads in function vm instructions and outputs function assembly code
      */
     public Function<List<String>, String> functionToAsm = (List<String> args) -> {
-        String currentFunctionName = args.get(1);
+        currentFunctionName = args.get(1);
+        currentLabel = null;
         Integer argCount = Integer.parseInt(args.get(2));
         StringBuilder functionBuilder = new StringBuilder();
             functionBuilder.append("(" + currentFunctionName + ")");
@@ -197,6 +241,26 @@ public class AsmCoder {
         String filename = args.get(3);
         int argPosToMoveBack = argCount + 5;
         StringBuilder callBuilder = new StringBuilder();
+        if (!isCurrentCodeHot()) {
+            usedSharedRoutines = true;
+            // compact form: hand the return address, target, and ARG offset to the shared call routine
+            callBuilder.append("@returnAddr" + returnAddrCounter + System.lineSeparator());
+            callBuilder.append("D=A" + System.lineSeparator());
+            callBuilder.append("@R14" + System.lineSeparator());
+            callBuilder.append("M=D" + System.lineSeparator());
+            callBuilder.append("@" + argPosToMoveBack + System.lineSeparator());
+            callBuilder.append("D=A" + System.lineSeparator());
+            callBuilder.append("@R15" + System.lineSeparator());
+            callBuilder.append("M=D" + System.lineSeparator());
+            callBuilder.append("@" + functionName + System.lineSeparator());
+            callBuilder.append("D=A" + System.lineSeparator());
+            callBuilder.append("@R13" + System.lineSeparator());
+            callBuilder.append("M=D" + System.lineSeparator());
+            callBuilder.append("@" + SHARED_CALL + System.lineSeparator());
+            callBuilder.append("0;JMP" + System.lineSeparator());
+            callBuilder.append("(returnAddr" + returnAddrCounter + ")");
+            return callBuilder.toString();
+        }
         // first push current stuff
         callBuilder.append("@returnAddr" + returnAddrCounter + System.lineSeparator());
         callBuilder.append("D=A" + System.lineSeparator());
@@ -231,9 +295,103 @@ public class AsmCoder {
     };
 
     /**
-     * Function that returns static "return" assembly code
+     * Returns "return" assembly code for the current function. Cold code jumps to the shared return routine, and a
+     * return inside an inlined call jumps to the end of the inlined body.
+     *
+     * @return the return asm
      */
     public String getReturnAsm() {
+        if (inlinedExitLabel != null) {
+            return getInlinedReturnAsm() + System.lineSeparator() +
+                   "@" + inlinedExitLabel + System.lineSeparator() +
+                   "0;JMP";
+        }
+        if (!isCurrentCodeHot()) {
+            usedSharedRoutines = true;
+            return "@" + SHARED_RETURN + System.lineSeparator() +
+                   "0;JMP";
+        }
+        return getInlineReturnAsm();
+    }
+
+    /**
+     * Function that reads in the argument count, local count, and exit label of an inlined call and outputs the assembly
+     * code that sets up its frame. Only leaf functions that leave THIS and THAT alone are inlined, so nothing runs
+     * between here and the inlined return that could touch the caller's LCL and ARG saved in R14 and R15.
+     */
+    public Function<List<String>, String> inlinedCallToAsm = (List<String> args) -> {
+        int argCount = Integer.parseInt(args.get(1));
+        int localCount = Integer.parseInt(args.get(2));
+        inlinedExitLabel = args.get(3);
+        StringBuilder inlinedBuilder = new StringBuilder();
+        inlinedBuilder.append("@LCL" + System.lineSeparator());
+        inlinedBuilder.append("D=M" + System.lineSeparator());
+        inlinedBuilder.append("@R14" + System.lineSeparator());
+        inlinedBuilder.append("M=D" + System.lineSeparator());
+        inlinedBuilder.append("@ARG" + System.lineSeparator());
+        inlinedBuilder.append("D=M" + System.lineSeparator());
+        inlinedBuilder.append("@R15" + System.lineSeparator());
+        inlinedBuilder.append("M=D" + System.lineSeparator());
+        inlinedBuilder.append("@SP" + System.lineSeparator());
+        inlinedBuilder.append("D=M" + System.lineSeparator());
+        inlinedBuilder.append("@" + argCount + System.lineSeparator());
+        inlinedBuilder.append("D=D-A" + System.lineSeparator());
+        inlinedBuilder.append("@ARG" + System.lineSeparator());
+        inlinedBuilder.append("M=D" + System.lineSeparator());
+        inlinedBuilder.append("@SP" + System.lineSeparator());
+        inlinedBuilder.append("D=M" + System.lineSeparator());
+        inlinedBuilder.append("@LCL" + System.lineSeparator());
+        inlinedBuilder.append("M=D");
+        for (int i = 0; i < localCount; i++) {
+            inlinedBuilder.append(System.lineSeparator());
+            inlinedBuilder.append("D=0" + System.lineSeparator());
+            inlinedBuilder.append(PUSH_VALUE_IN_D);
+        }
+        return inlinedBuilder.toString();
+    };
+
+    /**
+     * Returns the assembly code for returning from an inlined call: the return value replaces the arguments and the
+     * caller's LCL and ARG come back from R14 and R15. There is no frame to unwind and no return address to jump to.
+     *
+     * @return the inlined return asm
+     */
+    public String getInlinedReturnAsm() {
+        StringBuilder returnBuilder = new StringBuilder();
+        returnBuilder.append(MOVE_SP_UP_STORE_IN_D);
+        returnBuilder.append("@ARG" + System.lineSeparator());
+        returnBuilder.append("A=M" + System.lineSeparator());
+        returnBuilder.append("M=D" + System.lineSeparator());
+        returnBuilder.append("@ARG" + System.lineSeparator());
+        returnBuilder.append("D=M+1" + System.lineSeparator());
+        returnBuilder.append("@SP" + System.lineSeparator());
+        returnBuilder.append("M=D" + System.lineSeparator());
+        returnBuilder.append("@R14" + System.lineSeparator());
+        returnBuilder.append("D=M" + System.lineSeparator());
+        returnBuilder.append("@LCL" + System.lineSeparator());
+        returnBuilder.append("M=D" + System.lineSeparator());
+        returnBuilder.append("@R15" + System.lineSeparator());
+        returnBuilder.append("D=M" + System.lineSeparator());
+        returnBuilder.append("@ARG" + System.lineSeparator());
+        returnBuilder.append("M=D");
+        return returnBuilder.toString();
+    }
+
+    /**
+     * Returns the exit label that ends an inlined call, and goes back to writing code for the caller.
+     *
+     * @return the inlined end asm
+     */
+    public String getInlinedEndAsm() {
+        String exitLabel = inlinedExitLabel;
+        inlinedExitLabel = null;
+        return "(" + exitLabel + ")";
+    }
+
+    /*
+        Full return sequence, written inline in hot functions and once as the shared return routine
+     */
+    private String getInlineReturnAsm() {
         StringBuilder returnBuilder = new StringBuilder();
         returnBuilder.append("@LCL" + System.lineSeparator());
         returnBuilder.append("D=M" + System.lineSeparator());
@@ -302,7 +460,13 @@ public class AsmCoder {
     /**
      * Function that reads in a label name and return label assembly code
      */
-    public Function<String, String> labelAsm = (String label) -> "(" + label + ")";
+    public Function<String, String> labelAsm = (String label) -> {
+        // labels inside an inlined body belong to the callee, so they don't change how hot the caller's code is
+        if (inlinedExitLabel == null) {
+            currentLabel = label;
+        }
+        return "(" + label + ")";
+    };
 
     /**
      * Function that reads in destination for goto and return goto assembly code
@@ -324,6 +488,18 @@ public class AsmCoder {
      */
     private String getLTEQGT(String jump, Integer counter) {
         StringBuilder builder = new StringBuilder();
+        if (!isCurrentCodeHot()) {
+            usedSharedRoutines = true;
+            // compact form: the shared comparison routine jumps back to the address left in R13
+            builder.append("@CONTINUE" + counter + System.lineSeparator());
+            builder.append("D=A" + System.lineSeparator());
+            builder.append("@R13" + System.lineSeparator());
+            builder.append("M=D" + System.lineSeparator());
+            builder.append("@SHARED$" + jump + System.lineSeparator());
+            builder.append("0;JMP" + System.lineSeparator());
+            builder.append("(CONTINUE" + counter + ")");
+            return builder.toString();
+        }
         builder.append(GET_TWO_ON_STACK);
         builder.append("D=M-D" + System.lineSeparator());
         builder.append("@TRUE" + counter + System.lineSeparator());
@@ -343,7 +519,65 @@ public class AsmCoder {
     }
 
     /*
-        Translates segment to assembly code
+        Whether the code being translated should get the fast inline form. Inlined bodies are only ever hot callees
+     */
+    private boolean isCurrentCodeHot() {
+        return inlinedExitLabel != null || profile.isHot(currentFunctionName, currentLabel);
+    }
+
+    /*
+        Shared call routine. Expects the callee address in R13, the return address in R14, and nArgs + 5 in R15
+     */
+    private String getSharedCallRoutine() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(" + SHARED_CALL + ")" + System.lineSeparator());
+        builder.append("@R14" + System.lineSeparator());
+        builder.append("D=M" + System.lineSeparator());
+        builder.append(PUSH_VALUE_IN_D + System.lineSeparator());
+        for (String savedSegment : new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+            builder.append("@" + savedSegment + System.lineSeparator());
+            builder.append("D=M" + System.lineSeparator());
+            builder.append(PUSH_VALUE_IN_D + System.lineSeparator());
+        }
+        builder.append("@SP" + System.lineSeparator());
+        builder.append("D=M" + System.lineSeparator());
+        builder.append("@R15" + System.lineSeparator());
+        builder.append("D=D-M" + System.lineSeparator());
+        builder.append("@ARG" + System.lineSeparator());
+        builder.append("M=D" + System.lineSeparator());
+        builder.append("@SP" + System.lineSeparator());
+        builder.append("D=M" + System.lineSeparator());
+        builder.append("@LCL" + System.lineSeparator());
+        builder.append("M=D" + System.lineSeparator());
+        builder.append("@R13" + System.lineSeparator());
+        builder.append("A=M" + System.lineSeparator());
+        builder.append("0;JMP");
+        return builder.toString();
+    }
+
+    /*
+        Shared LT, EQ, or GT routine. Expects the return address in R13
+     */
+    private String getSharedComparisonRoutine(String jump) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("(SHARED$" + jump + ")" + System.lineSeparator());
+        builder.append(GET_TWO_ON_STACK);
+        builder.append("D=M-D" + System.lineSeparator());
+        builder.append("M=-1" + System.lineSeparator());
+        builder.append("@SHARED$" + jump + "$TRUE" + System.lineSeparator());
+        builder.append("D;J" + jump + System.lineSeparator());
+        builder.append("@SP" + System.lineSeparator());
+        builder.append("A=M-1" + System.lineSeparator());
+        builder.append("M=0" + System.lineSeparator());
+        builder.append("(SHARED$" + jump + "$TRUE)" + System.lineSeparator());
+        builder.append("@R13" + System.lineSeparator());
+        builder.append("A=M" + System.lineSeparator());
+        builder.append("0;JMP");
+        return builder.toString();
+    }
+
+    /*
+        Translates segment to assembly code. Throws IllegalArgumentException for an unknown segment
      */
     private String getSegmentTranslation(String type, String segment, int position, String fileName) {
         String segmentAsm = "";
@@ -404,6 +638,8 @@ public class AsmCoder {
                     }
                 }
                 break;
+            default:
+                throw new IllegalArgumentException("Unknown segment: " + segment);
         }
         return segmentAsm;
     }
@@ -32,30 +32,28 @@ public class AsmFileWriter {
      * Write asm file to output path.
      *
      * @param asmCode the asm code to be written out.
+     * @return the path of the written file
+     * @throws TranslationException if the file cannot be written
      */
-    public void writeAsmFile(List<String> asmCode) {
+    public Path writeAsmFile(List<String> asmCode) {
         String fileName = outputPath.getFileName().toString();
         if (outputPath.toString().endsWith(VM_EXT)) {
             String outputFileName = fileName.replace(VM_EXT, ASM_EXT);
             try {
                 String outputDir = outputPath.toRealPath(NOFOLLOW_LINKS).getParent().toString();
                 Path outputPath = Paths.get(outputDir, outputFileName);
-                Files.write(outputPath, asmCode, Charset.defaultCharset());
+                return Files.write(outputPath, asmCode, Charset.defaultCharset());
             } catch (IOException e) {
-                System.out.println("Issue encountered writing output file for: " + outputFileName);
-                e.printStackTrace();
-                System.exit(1);
+                throw new TranslationException(fileName, "Issue encountered writing output file for: " + outputFileName, e);
             }
         } else {
             String outputFileName = fileName.concat(ASM_EXT);
             try {
                 String outputDir = outputPath.toRealPath(NOFOLLOW_LINKS).toString();
                 Path outputPath = Paths.get(outputDir, outputFileName);
-                Files.write(outputPath, asmCode, Charset.defaultCharset());
+                return Files.write(outputPath, asmCode, Charset.defaultCharset());
             } catch (IOException e) {
-                System.out.println("Issue encountered writing output file for: " + outputFileName);
-                e.printStackTrace();
-                System.exit(1);
+                throw new TranslationException(fileName, "Issue encountered writing output file for: " + outputFileName, e);
             }
         }
     }
@@ -0,0 +1,382 @@
+package com.meyermt.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a class file holding static methods, just enough of the format for ExecutionEngine to turn vm functions into
+ * JVM methods. The class extends Object and has no fields. It is written as class file version 49, which the JVM
+ * verifies by type inference, so no stack map frames have to be computed for the jumps.
+ */
+class ClassFileBuilder {
+
+    final static int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010;
+
+    final static int ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04, ICONST_2 = 0x05, ICONST_3 = 0x06,
+            ICONST_4 = 0x07, ICONST_5 = 0x08, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, ILOAD_1 = 0x1b,
+            ILOAD_2 = 0x1c, ILOAD_3 = 0x1d, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, LALOAD = 0x2f, SALOAD = 0x35,
+            ISTORE_1 = 0x3c, ISTORE_2 = 0x3d, ISTORE_3 = 0x3e, LASTORE = 0x50, SASTORE = 0x56, POP = 0x57, DUP = 0x59,
+            DUP2 = 0x5c, IADD = 0x60, ISUB = 0x64, LSUB = 0x65, INEG = 0x74, IAND = 0x7e, IOR = 0x80, IXOR = 0x82,
+            IINC = 0x84, I2L = 0x85, I2S = 0x93, LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c,
+            IFGT = 0x9d, IFLE = 0x9e, IF_ICMPNE = 0xa0, IF_ICMPGE = 0xa2, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1,
+            INVOKESTATIC = 0xb8, GOTO_W = 0xc8;
+
+    private final static int MAGIC = 0xCAFEBABE, MAJOR_VERSION = 49;
+    private final static int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7, CONSTANT_METHODREF = 10,
+            CONSTANT_NAME_AND_TYPE = 12;
+    private final static int ACC_SUPER = 0x0020;
+    private final static int MAX_CONSTANTS = 65535, MAX_CODE_LENGTH = 65535;
+    private final static String OBJECT = "java/lang/Object", CODE = "Code";
+
+    private final String className;
+    private final ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(constantBytes);
+    private final Map<String, Integer> constantIndexes = new HashMap<>();
+    private final List<byte[]> methods = new ArrayList<>();
+    private final int thisClass;
+    private final int superClass;
+
+    /**
+     * Instantiates a new Class file builder.
+     *
+     * @param className the internal name of the class, e.g. "com/meyermt/vm/Program"
+     */
+    ClassFileBuilder(String className) {
+        this.className = className;
+        this.thisClass = classConstant(className);
+        this.superClass = classConstant(OBJECT);
+    }
+
+    /**
+     * Adds a method to the class.
+     *
+     * @param access     the access flags
+     * @param name       the method name
+     * @param descriptor the method descriptor, e.g. "([S)V"
+     * @param maxLocals  the number of local variable slots, parameters included
+     * @param maxStack   the deepest the operand stack gets
+     * @param code       the method body
+     * @throws IllegalStateException if the body is over the JVM's 64KB limit or the constant pool is full
+     */
+    void addMethod(int access, String name, String descriptor, int maxLocals, int maxStack, Code code) {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > MAX_CODE_LENGTH) {
+            throw new IllegalStateException("Method " + name + " is " + bytes.length + " bytes, over the 64KB limit");
+        }
+        ByteArrayOutputStream method = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(method)) {
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8Constant(CODE));
+            // max stack, max locals, code length, exception table length, attribute count
+            out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methods.add(method.toByteArray());
+    }
+
+    /**
+     * Writes out the class file.
+     *
+     * @return the class file bytes
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(classFile)) {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(constantIndexes.size() + 1);
+            constants.flush();
+            constantBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            // no interfaces or fields
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return classFile.toByteArray();
+    }
+
+    /**
+     * Starts a new method body.
+     *
+     * @return the empty code
+     */
+    Code newCode() {
+        return new Code();
+    }
+
+    private int utf8Constant(String value) {
+        return constant("Utf8 " + value, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    private int classConstant(String name) {
+        int nameIndex = utf8Constant(name);
+        return constant("Class " + name, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    private int integerConstant(int value) {
+        return constant("Integer " + value, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    /*
+        Only methods of the class being built are ever called, so every method reference points at it
+    */
+    private int methodConstant(String name, String descriptor) {
+        int nameIndex = utf8Constant(name);
+        int descriptorIndex = utf8Constant(descriptor);
+        int nameAndType = constant("NameAndType " + name + " " + descriptor, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+        return constant("Methodref " + name + " " + descriptor, out -> {
+            out.writeByte(CONSTANT_METHODREF);
+            out.writeShort(thisClass);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    /*
+        Adds a constant unless an equal one is already in the pool, and returns its index. Indexes start at 1
+    */
+    private int constant(String key, ConstantWriter writer) {
+        Integer index = constantIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        if (constantIndexes.size() + 1 >= MAX_CONSTANTS) {
+            throw new IllegalStateException("Constant pool of " + className + " is full");
+        }
+        try {
+            writer.write(constants);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index = constantIndexes.size() + 1;
+        constantIndexes.put(key, index);
+        return index;
+    }
+
+    private interface ConstantWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A position in a method body that jumps can target before it is known.
+     */
+    static class Label {
+        private int position = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    /**
+     * A method body being written, one instruction at a time.
+     */
+    class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Set<Label> labels = new HashSet<>();
+
+        /**
+         * Writes instructions that take no operands.
+         *
+         * @param opcodes the opcodes
+         * @return this code
+         */
+        Code op(int... opcodes) {
+            for (int opcode : opcodes) {
+                bytes.write(opcode);
+            }
+            return this;
+        }
+
+        /**
+         * Writes the shortest instruction that pushes an int constant.
+         *
+         * @param value the constant
+         * @return this code
+         */
+        Code pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                writeShort(value);
+            } else {
+                int index = integerConstant(value);
+                if (index <= 0xff) {
+                    bytes.write(LDC);
+                    bytes.write(index);
+                } else {
+                    bytes.write(LDC_W);
+                    writeShort(index);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Writes an iinc instruction.
+         *
+         * @param local the local variable slot, below 256
+         * @param delta the amount to add, from -128 to 127
+         * @return this code
+         */
+        Code increment(int local, int delta) {
+            bytes.write(IINC);
+            bytes.write(local);
+            bytes.write(delta);
+            return this;
+        }
+
+        /**
+         * Writes a call to a static method of the class being built.
+         *
+         * @param name       the method name
+         * @param descriptor the method descriptor
+         * @return this code
+         */
+        Code invokeStatic(String name, String descriptor) {
+            bytes.write(INVOKESTATIC);
+            writeShort(methodConstant(name, descriptor));
+            return this;
+        }
+
+        /**
+         * Writes a branch with a 16 bit offset, for jumps within a short sequence of instructions.
+         *
+         * @param opcode the branch opcode, e.g. IFEQ or GOTO
+         * @param target the label to jump to
+         * @return this code
+         */
+        Code branch(int opcode, Label target) {
+            int start = bytes.size();
+            bytes.write(opcode);
+            addFixup(target, start, 2);
+            writeShort(0);
+            return this;
+        }
+
+        /**
+         * Writes a goto with a 32 bit offset, which can reach anywhere in the method.
+         *
+         * @param target the label to jump to
+         * @return this code
+         */
+        Code gotoWide(Label target) {
+            int start = bytes.size();
+            bytes.write(GOTO_W);
+            addFixup(target, start, 4);
+            bytes.write(0);
+            bytes.write(0);
+            writeShort(0);
+            return this;
+        }
+
+        /**
+         * Writes a jump taken when the int on top of the stack is not zero. Conditional branches only take 16 bit
+         * offsets, so the test skips over a goto_w when it fails.
+         *
+         * @param target the label to jump to
+         * @return this code
+         */
+        Code ifNonZeroWide(Label target) {
+            // ifeq (3 bytes) past the goto_w (5 bytes)
+            bytes.write(IFEQ);
+            writeShort(3 + 5);
+            return gotoWide(target);
+        }
+
+        /**
+         * Fixes a label at the current position.
+         *
+         * @param label the label
+         * @return this code
+         */
+        Code mark(Label label) {
+            label.position = bytes.size();
+            labels.add(label);
+            return this;
+        }
+
+        /**
+         * Gets the size of the code so far.
+         *
+         * @return the number of bytes written
+         */
+        int size() {
+            return bytes.size();
+        }
+
+        private void addFixup(Label target, int instructionStart, int offsetSize) {
+            target.fixups.add(new int[]{instructionStart, bytes.size(), offsetSize});
+            labels.add(target);
+        }
+
+        private void writeShort(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        /*
+            Fills in the jump offsets now that every label has a position
+        */
+        private byte[] toByteArray() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int[] fixup : label.fixups) {
+                    if (label.position < 0) {
+                        throw new IllegalStateException("Jump to a label that was never marked");
+                    }
+                    int offset = label.position - fixup[0];
+                    if (fixup[2] == 2 && (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)) {
+                        throw new IllegalStateException("Jump too far for a 16 bit offset: " + offset);
+                    }
+                    for (int i = 0; i < fixup[2]; i++) {
+                        code[fixup[1] + i] = (byte) (offset >> (8 * (fixup[2] - 1 - i)));
+                    }
+                }
+            }
+            return code;
+        }
+    }
+}
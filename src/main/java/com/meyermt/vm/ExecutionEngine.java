@@ -0,0 +1,812 @@
+package com.meyermt.vm;
+
+import com.meyermt.vm.ClassFileBuilder.Code;
+import com.meyermt.vm.ClassFileBuilder.Label;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.meyermt.vm.ClassFileBuilder.*;
+
+/**
+ * Runs vm programs directly on the JVM instead of translating them to assembly code and emulating that. Every vm
+ * function is compiled once into a static method of a class generated for the program. Commands become calls to small
+ * helper methods for the stack and segments, labels and gotos become jumps within the method, and vm calls become
+ * direct calls to the callee's method, so the JIT compiles and inlines the program like any other Java code. A
+ * function too long for one JVM method is split into parts that return to a dispatching method to jump between them.
+ * MethodHandle combinators can't express the arbitrary gotos inside a vm function, so the class is written as bytecode
+ * with ClassFileBuilder and loaded through its own class loader. Memory is a short[] RAM laid out like the Hack RAM the
+ * assembly code uses: SP, LCL, ARG, THIS, THAT, temp at 5-12, and statics from 16 in the order the assembler would
+ * assign them.
+ *
+ * <p>For a program translated without a profile, the results line up with an emulated run of the translated assembly
+ * code, except for scratch memory that only the assembly code uses (R13-R15, FRAME, RET) and the return address slot of
+ * each call frame, which holds 0 here because there is no ROM address to save. A profile changes where FRAME and RET
+ * first show up in the assembly code, or whether they do at all, which moves the statics assigned after them, so the
+ * comparison only holds for unprofiled output.</p>
+ *
+ * <p>Each vm call is a JVM call, so every run gets its own thread with a stack deep enough for any call chain the RAM
+ * can hold. A compiled engine is not changed by running it, and each run gets its own RAM, so one engine can run on
+ * many threads at once.</p>
+ */
+public class ExecutionEngine {
+
+    /**
+     * Size of the Hack RAM.
+     */
+    public final static int RAM_SIZE = 32768;
+
+    private final static int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4, TEMP_BASE = 5, VARIABLE_BASE = 16;
+    private final static int STACK_BASE = 256, FRAME_SIZE = 5;
+    // what a compiled function returns: a vm return, a halt, the step limit, or running off the end of function n - 3
+    private final static int RETURNED = 0, HALTED = 1, OUT_OF_STEPS = 2, FELL_OFF = 3;
+    // a vm call frame takes at least six words of RAM, and a JVM frame for it well under a KB
+    private final static long RUN_STACK_BYTES = 64L * 1024 * 1024;
+    // a command compiles to at most about 30 bytes, so a part stays well under the JVM's 64KB method limit
+    private final static int MAX_PART_COMMANDS = 1500;
+    // deeper than any generated method's operand stack gets
+    private final static int MAX_STACK = 6;
+    private final static String SYS_INIT = "Sys.init";
+    // scratch variables the return assembly code uses, which take static addresses before any later statics
+    private final static String FRAME = "FRAME", RET = "RET";
+
+    private final static String PROGRAM_CLASS = "com/meyermt/vm/CompiledProgram", FUNCTION_PREFIX = "f";
+    private final static String FUNCTION_TYPE = "([S[J)I", PART_TYPE = "([S[JI)I", RAM_TYPE = "([S)V",
+            RAM_INT_TYPE = "([SI)V", RAM_INT_INT_TYPE = "([SII)V", POP_TYPE = "([S)I", CHARGE_TYPE = "([JI)Z";
+    private final static String PUSH = "push", POP = "pop", TOP = "top", PUSH_LOCALS = "pushLocals",
+            PUSH_FRAME = "pushFrame", POP_FRAME = "popFrame", CHARGE = "charge", PUSH_AT = "pushAt", POP_AT = "popAt",
+            PUSH_INDIRECT = "pushIndirect", POP_INDIRECT = "popIndirect";
+
+    private final Map<String, CompiledFunction> functions = new HashMap<>();
+    private final List<CompiledFunction> functionsInOrder = new ArrayList<>();
+    private final Map<String, Integer> variableAddresses = new HashMap<>();
+    private final MethodHandle entry;
+
+    /**
+     * Instantiates a new Execution engine and compiles the vm sources. Comments and blank lines are removed first.
+     *
+     * @param sources vm file names (e.g. "Main.vm") mapped to their raw lines
+     * @throws TranslationException if a vm command is unknown or malformed, a call or jump target does not exist, or
+     *                              the program is too large for the JVM's class file limits
+     */
+    public ExecutionEngine(Map<String, List<String>> sources) {
+        // same collector as Translator so files come in the same order and statics get the same addresses
+        Map<String, List<String>> cleanFilesAndLines = sources.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        fileAndLines -> VMFileReader.removeComments(fileAndLines.getValue())));
+        readFunctions(cleanFilesAndLines);
+        entry = defineProgram();
+    }
+
+    /**
+     * Reads and compiles a .vm file or a directory of .vm files.
+     *
+     * @param input the .vm file or directory
+     * @return the compiled engine
+     * @throws TranslationException if the input cannot be read or compiled
+     */
+    public static ExecutionEngine fromPath(Path input) {
+        VMFileReader reader = new VMFileReader(input.toString());
+        Map<String, List<String>> filesAndLines = reader.readFileOrFiles();
+        return new ExecutionEngine(filesAndLines);
+    }
+
+    /**
+     * Runs the program until it halts.
+     *
+     * @return the result
+     * @throws IllegalStateException if the program reads or writes outside of RAM, overflows the call stack, runs off
+     *                               the end of a function, or returns from Sys.init
+     */
+    public Result run() {
+        return run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the program until it halts or has executed the given number of vm commands. A program halts when it reaches
+     * a goto that jumps to itself, the usual end loop of Sys.init. Steps are counted a block at a time, from one label,
+     * jump, call, or return to the next, so a run that hits the limit stops at the start of the first block that would
+     * go over it.
+     *
+     * @param maxSteps the most vm commands to execute
+     * @return the result
+     * @throws IllegalStateException if the program reads or writes outside of RAM, overflows the call stack, runs off
+     *                               the end of a function, or returns from Sys.init
+     */
+    public Result run(long maxSteps) {
+        short[] ram = new short[RAM_SIZE];
+        long[] budget = {maxSteps};
+        // the bootstrap's call to Sys.init, where the saved registers are all still 0
+        ram[SP] = STACK_BASE + FRAME_SIZE;
+        ram[ARG] = STACK_BASE;
+        ram[LCL] = ram[SP];
+
+        int[] exitCode = new int[1];
+        Throwable[] failure = new Throwable[1];
+        Thread runner = new Thread(null, () -> {
+            try {
+                exitCode[0] = (int) entry.invokeExact(ram, budget);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "vm-run", RUN_STACK_BYTES);
+        runner.setDaemon(true);
+        runner.start();
+        try {
+            runner.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running", e);
+        }
+
+        long steps = maxSteps - budget[0];
+        if (failure[0] instanceof StackOverflowError) {
+            throw new IllegalStateException("Call stack overflow after " + steps + " steps", failure[0]);
+        } else if (failure[0] instanceof ArrayIndexOutOfBoundsException) {
+            throw new IllegalStateException("Memory access outside of RAM after " + steps + " steps", failure[0]);
+        } else if (failure[0] != null) {
+            throw new IllegalStateException("Run failed after " + steps + " steps", failure[0]);
+        }
+        switch (exitCode[0]) {
+            case HALTED:
+                return new Result(ram, steps, true);
+            case OUT_OF_STEPS:
+                return new Result(ram, steps, false);
+            case RETURNED:
+                throw new IllegalStateException(SYS_INIT + " returned after " + steps
+                        + " steps, with nothing to return to");
+            default:
+                String functionName = functionsInOrder.get(exitCode[0] - FELL_OFF).name;
+                throw new IllegalStateException("Ran off the end of " + functionName + " without returning after "
+                        + steps + " steps");
+        }
+    }
+
+    /*
+        Splits the files into functions and assigns static addresses. Functions are all read before any are compiled so
+        calls can link to functions defined later
+    */
+    private void readFunctions(Map<String, List<String>> cleanFilesAndLines) {
+        for (Map.Entry<String, List<String>> fileAndLines : cleanFilesAndLines.entrySet()) {
+            String sourceName = fileAndLines.getKey();
+            String fileName = sourceName.replace(".vm", "");
+            CompiledFunction current = null;
+            for (String line : fileAndLines.getValue()) {
+                String[] args = Parser.checkOperands(sourceName, line);
+                try {
+                    if (args[0].equals(Parser.FUNCTION)) {
+                        current = new CompiledFunction(args[1], sourceName, fileName, Integer.parseInt(args[2]),
+                                functionsInOrder.size());
+                        if (functions.put(current.name, current) != null) {
+                            throw new TranslationException(sourceName,
+                                    "Function defined twice in " + sourceName + ": " + line);
+                        }
+                        functionsInOrder.add(current);
+                        continue;
+                    }
+                    if (current == null) {
+                        throw new TranslationException(sourceName,
+                                "Command outside of a function in " + sourceName + ": " + line);
+                    }
+                    assignVariables(fileName, args);
+                    current.body.add(args);
+                } catch (NumberFormatException e) {
+                    throw new TranslationException(sourceName,
+                            "Malformed vm command in " + sourceName + ": " + line + " (" + e.getMessage() + ")", e);
+                }
+            }
+        }
+        if (!functions.containsKey(SYS_INIT)) {
+            throw new TranslationException("No " + SYS_INIT + " function to start from");
+        }
+    }
+
+    /*
+        The assembler gives each new variable the next address from 16, in the order they show up
+    */
+    private void assignVariables(String fileName, String[] args) {
+        if ((args[0].equals(Parser.PUSH) || args[0].equals(Parser.POP)) && args[1].equals(AsmCoder.STATIC)) {
+            variableAddresses.putIfAbsent(fileName + "." + Integer.parseInt(args[2]), nextVariableAddress());
+        } else if (args[0].equals(Parser.RETURN)) {
+            variableAddresses.putIfAbsent(FRAME, nextVariableAddress());
+            variableAddresses.putIfAbsent(RET, nextVariableAddress());
+        }
+    }
+
+    private int nextVariableAddress() {
+        return VARIABLE_BASE + variableAddresses.size();
+    }
+
+    /*
+        Writes the program class, loads it, and finds Sys.init's method
+    */
+    private MethodHandle defineProgram() {
+        ClassFileBuilder builder = new ClassFileBuilder(PROGRAM_CLASS);
+        try {
+            writeHelpers(builder);
+            for (CompiledFunction function : functionsInOrder) {
+                writeFunction(builder, function);
+            }
+        } catch (IllegalStateException e) {
+            throw new TranslationException("Program too large to compile for the JVM: " + e.getMessage());
+        }
+        Class<?> program = new ProgramLoader().define(builder.toByteArray());
+        try {
+            return MethodHandles.publicLookup().findStatic(program, methodName(functions.get(SYS_INIT)),
+                    MethodType.methodType(int.class, short[].class, long[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to link the compiled program", e);
+        }
+    }
+
+    private static String methodName(CompiledFunction function) {
+        return FUNCTION_PREFIX + function.index;
+    }
+
+    private static String partName(CompiledFunction function, int part) {
+        return methodName(function) + "_" + part;
+    }
+
+    /*
+        Compiles one vm function into a method taking the RAM and the remaining step budget. Each block charges the
+        budget for all of its commands up front, function entry counting as one step for pushing the locals. A function
+        too long for one JVM method is compiled into parts instead, each a method that also takes the entry point to
+        start at, and a method for the function that calls the parts in turn
+    */
+    private void writeFunction(ClassFileBuilder builder, CompiledFunction function) {
+        List<String[]> body = function.body;
+        List<Integer> partStarts = partStarts(body);
+        // a label defined twice means its last definition, like the assembler
+        Map<String, Integer> labelIndexes = new HashMap<>();
+        for (int i = 0; i < body.size(); i++) {
+            if (body.get(i)[0].equals(Parser.LABEL)) {
+                labelIndexes.put(body.get(i)[1], i);
+            }
+        }
+        // entry points are numbered in body order, so each part's are a range starting at the part's own
+        List<EntryPoint> partEntries = new ArrayList<>();
+        List<List<EntryPoint>> partLabels = new ArrayList<>();
+        Map<String, EntryPoint> labels = new HashMap<>();
+        partEntries.add(new EntryPoint(0, 0));
+        partLabels.add(new ArrayList<>());
+        for (int i = 0; i < body.size(); i++) {
+            if (partEntries.size() < partStarts.size() && partStarts.get(partEntries.size()) == i) {
+                partEntries.add(new EntryPoint(partEntries.size() + labels.size(), partEntries.size()));
+                partLabels.add(new ArrayList<>());
+            }
+            String[] args = body.get(i);
+            if (args[0].equals(Parser.LABEL) && labelIndexes.get(args[1]) == i) {
+                EntryPoint label = new EntryPoint(partEntries.size() + labels.size(), partEntries.size() - 1);
+                labels.put(args[1], label);
+                partLabels.get(label.part).add(label);
+            }
+        }
+
+        boolean split = partStarts.size() > 1;
+        for (int part = 0; part < partStarts.size(); part++) {
+            int end = part + 1 < partStarts.size() ? partStarts.get(part + 1) : body.size();
+            Code code = builder.newCode();
+            if (split) {
+                for (EntryPoint label : partLabels.get(part)) {
+                    Label next = new Label();
+                    code.op(ILOAD_2).pushInt(label.id).branch(IF_ICMPNE, next).gotoWide(label.target).mark(next);
+                }
+            }
+            writePart(code, function, part, partStarts.get(part), end, partEntries, labelIndexes, labels);
+            if (split) {
+                builder.addMethod(ACC_PRIVATE | ACC_STATIC, partName(function, part), PART_TYPE, 4, MAX_STACK, code);
+            } else {
+                builder.addMethod(ACC_PUBLIC | ACC_STATIC, methodName(function), FUNCTION_TYPE, 4, MAX_STACK, code);
+            }
+        }
+        if (split) {
+            writeDispatcher(builder, function, partEntries);
+        }
+    }
+
+    /*
+        Where each part of a function starts. A part holds MAX_PART_COMMANDS commands, and more when it ends on labels,
+        which stay in the part of the command after them so a goto that jumps to itself is still seen as one
+    */
+    private static List<Integer> partStarts(List<String[]> body) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 1; i < body.size(); i++) {
+            if (i - starts.get(starts.size() - 1) >= MAX_PART_COMMANDS && !body.get(i - 1)[0].equals(Parser.LABEL)) {
+                starts.add(i);
+            }
+        }
+        return starts;
+    }
+
+    /*
+        Compiles the commands from start up to end, the whole function unless it is split. The start of a part is the
+        start of a block, so that the part charges for its own commands
+    */
+    private void writePart(Code code, CompiledFunction function, int part, int start, int end,
+                           List<EntryPoint> partEntries, Map<String, Integer> labelIndexes,
+                           Map<String, EntryPoint> labels) {
+        List<String[]> body = function.body;
+        code.mark(partEntries.get(part).target);
+        if (part == 0) {
+            writeCharge(code, 1 + blockLength(body, start, end));
+            code.op(ALOAD_0).pushInt(function.localCount).invokeStatic(PUSH_LOCALS, RAM_INT_TYPE);
+        } else {
+            writeCharge(code, blockLength(body, start, end));
+        }
+        // labels passed since the last command, a goto to one of them jumps to itself
+        Set<String> labelsHere = new HashSet<>();
+        for (int i = start; i < end; i++) {
+            String[] args = body.get(i);
+            try {
+                if (args[0].equals(Parser.LABEL)) {
+                    if (labelIndexes.get(args[1]) == i) {
+                        code.mark(labels.get(args[1]).target);
+                        labelsHere.add(args[1]);
+                    }
+                    writeCharge(code, blockLength(body, i + 1, end));
+                    continue;
+                }
+                writeCommand(code, function, part, args, labels, labelsHere);
+                labelsHere.clear();
+                if (endsBlock(args[0])) {
+                    writeCharge(code, blockLength(body, i + 1, end));
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // reported like Parser reports what AsmCoder rejects
+                throw new TranslationException(function.sourceName, "Malformed vm command in " + function.sourceName
+                        + ": " + String.join(" ", args) + " (" + e.getMessage() + ")", e);
+            }
+        }
+        if (end < body.size()) {
+            leavePart(code, partEntries.get(part + 1));
+        } else {
+            // the assembly code would fall through into whatever comes next, which has no meaning here
+            code.pushInt(FELL_OFF + function.index).op(IRETURN);
+        }
+    }
+
+    /*
+        Writes the method for a function compiled into parts. It calls the part holding the entry point, starting from
+        the function's own, until a part returns a result instead of an entry point in another part
+    */
+    private static void writeDispatcher(ClassFileBuilder builder, CompiledFunction function,
+                                        List<EntryPoint> partEntries) {
+        Code code = builder.newCode();
+        Label dispatch = new Label(), called = new Label(), jumped = new Label();
+        code.op(ICONST_0, ISTORE_2).mark(dispatch);
+        for (int part = 0; part < partEntries.size(); part++) {
+            Label nextPart = new Label();
+            if (part + 1 < partEntries.size()) {
+                code.op(ILOAD_2).pushInt(partEntries.get(part + 1).id).branch(IF_ICMPGE, nextPart);
+            }
+            code.op(ALOAD_0, ALOAD_1, ILOAD_2).invokeStatic(partName(function, part), PART_TYPE).gotoWide(called)
+                    .mark(nextPart);
+        }
+        code.mark(called).op(ISTORE_3, ILOAD_3).branch(IFLT, jumped).op(ILOAD_3, IRETURN)
+                .mark(jumped).op(ICONST_M1, ILOAD_3, ISUB, ISTORE_2).gotoWide(dispatch);
+        builder.addMethod(ACC_PUBLIC | ACC_STATIC, methodName(function), FUNCTION_TYPE, 4, MAX_STACK, code);
+    }
+
+    /*
+        Returns from a part to jump to an entry point in another part, as a negative number so it can't be mistaken
+        for a result
+    */
+    private static void leavePart(Code code, EntryPoint target) {
+        code.pushInt(-1 - target.id).op(IRETURN);
+    }
+
+    private static boolean endsBlock(String command) {
+        return command.equals(Parser.GOTO) || command.equals(Parser.IF_GOTO) || command.equals(Parser.CALL)
+                || command.equals(Parser.RETURN);
+    }
+
+    /*
+        Number of commands from start up to the next label or end, or through the next command that leaves the block
+    */
+    private static int blockLength(List<String[]> body, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end && !body.get(i)[0].equals(Parser.LABEL); i++) {
+            length++;
+            if (endsBlock(body.get(i)[0])) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static void writeCharge(Code code, int steps) {
+        if (steps == 0) {
+            return;
+        }
+        Label charged = new Label();
+        code.op(ALOAD_1).pushInt(steps).invokeStatic(CHARGE, CHARGE_TYPE).branch(IFNE, charged)
+                .pushInt(OUT_OF_STEPS).op(IRETURN)
+                .mark(charged);
+    }
+
+    private void writeCommand(Code code, CompiledFunction function, int part, String[] args,
+                              Map<String, EntryPoint> labels, Set<String> labelsHere) {
+        String command = args[0];
+        String line = String.join(" ", args);
+        switch (command) {
+            case Parser.ADD:
+            case Parser.SUB:
+            case Parser.AND:
+            case Parser.OR:
+            case Parser.EQ:
+            case Parser.GT:
+            case Parser.LT:
+            case Parser.NEG:
+            case Parser.NOT:
+                // the helpers are named after the commands
+                code.op(ALOAD_0).invokeStatic(command, RAM_TYPE);
+                break;
+            case Parser.PUSH:
+                writePush(code, function, args[1], Integer.parseInt(args[2]));
+                break;
+            case Parser.POP:
+                writePop(code, function, args[1], Integer.parseInt(args[2]));
+                break;
+            case Parser.GOTO: {
+                EntryPoint target = entryPoint(function, labels, args[1]);
+                if (labelsHere.contains(args[1])) {
+                    // a goto that jumps to itself can never leave, so this is where the program ends
+                    code.pushInt(HALTED).op(IRETURN);
+                } else if (target.part == part) {
+                    code.gotoWide(target.target);
+                } else {
+                    leavePart(code, target);
+                }
+                break;
+            }
+            case Parser.IF_GOTO: {
+                EntryPoint target = entryPoint(function, labels, args[1]);
+                code.op(ALOAD_0).invokeStatic(POP, POP_TYPE);
+                if (target.part == part) {
+                    code.ifNonZeroWide(target.target);
+                } else {
+                    Label stay = new Label();
+                    code.branch(IFEQ, stay);
+                    leavePart(code, target);
+                    code.mark(stay);
+                }
+                break;
+            }
+            case Parser.CALL: {
+                CompiledFunction callee = functions.get(args[1]);
+                if (callee == null) {
+                    throw new TranslationException(function.sourceName,
+                            "Call to unknown function in " + function.sourceName + ": " + line);
+                }
+                // a halt, the step limit, or a failure in the callee ends this function too
+                Label returned = new Label();
+                code.op(ALOAD_0).pushInt(Integer.parseInt(args[2])).invokeStatic(PUSH_FRAME, RAM_INT_TYPE)
+                        .op(ALOAD_0, ALOAD_1).invokeStatic(methodName(callee), FUNCTION_TYPE)
+                        .op(DUP).branch(IFEQ, returned).op(IRETURN)
+                        .mark(returned).op(ClassFileBuilder.POP);
+                break;
+            }
+            case Parser.RETURN:
+                code.op(ALOAD_0).invokeStatic(POP_FRAME, RAM_TYPE).pushInt(RETURNED).op(IRETURN);
+                break;
+            default:
+                throw new TranslationException(function.sourceName,
+                        "Unknown vm command in " + function.sourceName + ": " + line);
+        }
+    }
+
+    private EntryPoint entryPoint(CompiledFunction function, Map<String, EntryPoint> labels, String label) {
+        EntryPoint target = labels.get(label);
+        if (target == null) {
+            throw new TranslationException(function.sourceName,
+                    "Jump to a label outside of " + function.name + " in " + function.sourceName + ": " + label);
+        }
+        return target;
+    }
+
+    private void writePush(Code code, CompiledFunction function, String segment, int position) {
+        code.op(ALOAD_0);
+        if (segment.equals(AsmCoder.CONSTANT)) {
+            code.pushInt((short) position).invokeStatic(PUSH, RAM_INT_TYPE);
+            return;
+        }
+        int baseRegister = baseRegister(segment);
+        if (baseRegister >= 0) {
+            code.pushInt(baseRegister).pushInt(position).invokeStatic(PUSH_INDIRECT, RAM_INT_INT_TYPE);
+        } else {
+            code.pushInt(fixedAddress(function, segment, position)).invokeStatic(PUSH_AT, RAM_INT_TYPE);
+        }
+    }
+
+    private void writePop(Code code, CompiledFunction function, String segment, int position) {
+        if (segment.equals(AsmCoder.CONSTANT)) {
+            throw new IllegalArgumentException("Cannot pop to the constant segment");
+        }
+        code.op(ALOAD_0);
+        int baseRegister = baseRegister(segment);
+        if (baseRegister >= 0) {
+            code.pushInt(baseRegister).pushInt(position).invokeStatic(POP_INDIRECT, RAM_INT_INT_TYPE);
+        } else {
+            code.pushInt(fixedAddress(function, segment, position)).invokeStatic(POP_AT, RAM_INT_TYPE);
+        }
+    }
+
+    /*
+        Register holding the base address of a pointer-based segment, or -1 for the other segments
+    */
+    private static int baseRegister(String segment) {
+        switch (segment) {
+            case AsmCoder.LOCAL:
+                return LCL;
+            case AsmCoder.ARGUMENT:
+                return ARG;
+            case AsmCoder.THIS:
+                return THIS;
+            case AsmCoder.THAT:
+                return THAT;
+            default:
+                return -1;
+        }
+    }
+
+    private int fixedAddress(CompiledFunction function, String segment, int position) {
+        switch (segment) {
+            case AsmCoder.STATIC:
+                return variableAddresses.get(function.fileName + "." + position);
+            case AsmCoder.TEMP:
+                return TEMP_BASE + position;
+            case AsmCoder.POINTER:
+                // matches AsmCoder, where any position other than 0 means THAT
+                return position == 0 ? THIS : THAT;
+            default:
+                throw new IllegalArgumentException("Unknown segment: " + segment);
+        }
+    }
+
+    /*
+        Writes the helper methods the compiled functions call, each doing what the matching assembly code does. They
+        are small enough for the JIT to inline into every call site
+    */
+    private static void writeHelpers(ClassFileBuilder builder) {
+        // ram[ram[SP]++] = value
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, PUSH, RAM_INT_TYPE, 3, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ICONST_0, SALOAD, ISTORE_2)
+                .op(ALOAD_0, ICONST_0, ILOAD_2, ICONST_1, IADD, SASTORE)
+                .op(ALOAD_0, ILOAD_2, ILOAD_1, SASTORE, RETURN));
+        // return ram[--ram[SP]]
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, POP, POP_TYPE, 2, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ICONST_0, SALOAD, ICONST_1, ISUB, I2S, ISTORE_1)
+                .op(ALOAD_0, ICONST_0, ILOAD_1, SASTORE)
+                .op(ALOAD_0, ILOAD_1, SALOAD, IRETURN));
+        // return ram[SP] - 1
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, TOP, POP_TYPE, 1, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ICONST_0, SALOAD, ICONST_1, ISUB, IRETURN));
+
+        writeBinaryHelper(builder, Parser.ADD, IADD);
+        writeBinaryHelper(builder, Parser.SUB, ISUB);
+        writeBinaryHelper(builder, Parser.AND, IAND);
+        writeBinaryHelper(builder, Parser.OR, IOR);
+        // comparisons test the sign of the 16 bit difference like the assembly code does, overflow included
+        writeComparisonHelper(builder, Parser.EQ, IFEQ);
+        writeComparisonHelper(builder, Parser.GT, IFGT);
+        writeComparisonHelper(builder, Parser.LT, IFLT);
+        writeUnaryHelper(builder, Parser.NEG, INEG);
+        writeUnaryHelper(builder, Parser.NOT, ICONST_M1, IXOR);
+
+        // push(ram, ram[address])
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, PUSH_AT, RAM_INT_TYPE, 2, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ALOAD_0, ILOAD_1, SALOAD).invokeStatic(PUSH, RAM_INT_TYPE).op(RETURN));
+        // ram[address] = pop(ram)
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, POP_AT, RAM_INT_TYPE, 2, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ILOAD_1, ALOAD_0).invokeStatic(POP, POP_TYPE).op(SASTORE, RETURN));
+        // push(ram, ram[ram[register] + position])
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, PUSH_INDIRECT, RAM_INT_INT_TYPE, 3, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ALOAD_0, ALOAD_0, ILOAD_1, SALOAD, ILOAD_2, IADD, SALOAD)
+                .invokeStatic(PUSH, RAM_INT_TYPE).op(RETURN));
+        // ram[ram[register] + position] = pop(ram)
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, POP_INDIRECT, RAM_INT_INT_TYPE, 3, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ALOAD_0, ILOAD_1, SALOAD, ILOAD_2, IADD, ALOAD_0)
+                .invokeStatic(POP, POP_TYPE).op(SASTORE, RETURN));
+
+        // while (count > 0) { push(ram, 0); count--; }
+        Code pushLocals = builder.newCode();
+        Label loop = new Label(), done = new Label();
+        pushLocals.mark(loop).op(ILOAD_1).branch(IFLE, done)
+                .op(ALOAD_0, ICONST_0).invokeStatic(PUSH, RAM_INT_TYPE).increment(1, -1).branch(GOTO, loop)
+                .mark(done).op(RETURN);
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, PUSH_LOCALS, RAM_INT_TYPE, 2, MAX_STACK, pushLocals);
+
+        // saves the caller's frame with a 0 return address, then ARG = SP - argCount - 5 and LCL = SP
+        Code pushFrame = builder.newCode().op(ALOAD_0, ICONST_0).invokeStatic(PUSH, RAM_INT_TYPE);
+        for (int register : new int[]{LCL, ARG, THIS, THAT}) {
+            pushFrame.op(ALOAD_0, ALOAD_0).pushInt(register).op(SALOAD).invokeStatic(PUSH, RAM_INT_TYPE);
+        }
+        pushFrame.op(ALOAD_0).pushInt(ARG).op(ALOAD_0, ICONST_0, SALOAD, ILOAD_1, ISUB).pushInt(FRAME_SIZE)
+                .op(ISUB, SASTORE)
+                .op(ALOAD_0).pushInt(LCL).op(ALOAD_0, ICONST_0, SALOAD, SASTORE, RETURN);
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, PUSH_FRAME, RAM_INT_TYPE, 2, MAX_STACK, pushFrame);
+
+        // puts the return value in place of the arguments and restores the caller's frame from below LCL
+        Code popFrame = builder.newCode()
+                .op(ALOAD_0).pushInt(LCL).op(SALOAD, ISTORE_1)
+                .op(ALOAD_0, ALOAD_0).pushInt(ARG).op(SALOAD, ALOAD_0).invokeStatic(POP, POP_TYPE).op(SASTORE)
+                .op(ALOAD_0).pushInt(SP).op(ALOAD_0).pushInt(ARG).op(SALOAD, ICONST_1, IADD, SASTORE);
+        int[] restored = {THAT, THIS, ARG, LCL};
+        for (int i = 0; i < restored.length; i++) {
+            popFrame.op(ALOAD_0).pushInt(restored[i]).op(ALOAD_0, ILOAD_1).pushInt(i + 1).op(ISUB, SALOAD, SASTORE);
+        }
+        popFrame.op(RETURN);
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, POP_FRAME, RAM_TYPE, 2, MAX_STACK, popFrame);
+
+        // if (budget[0] < steps) return false; budget[0] -= steps; return true;
+        Label enough = new Label();
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, CHARGE, CHARGE_TYPE, 2, MAX_STACK, builder.newCode()
+                .op(ALOAD_0, ICONST_0, LALOAD, ILOAD_1, I2L, LCMP).branch(IFGE, enough)
+                .op(ICONST_0, IRETURN)
+                .mark(enough).op(ALOAD_0, ICONST_0, DUP2, LALOAD, ILOAD_1, I2L, LSUB, LASTORE, ICONST_1, IRETURN));
+    }
+
+    /*
+        y = pop(ram); ram[top(ram)] = ram[top(ram)] op y
+    */
+    private static void writeBinaryHelper(ClassFileBuilder builder, String name, int opcode) {
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, name, RAM_TYPE, 3, MAX_STACK, builder.newCode()
+                .op(ALOAD_0).invokeStatic(POP, POP_TYPE).op(ISTORE_1)
+                .op(ALOAD_0).invokeStatic(TOP, POP_TYPE).op(ISTORE_2)
+                .op(ALOAD_0, ILOAD_2, ALOAD_0, ILOAD_2, SALOAD, ILOAD_1, opcode, SASTORE, RETURN));
+    }
+
+    /*
+        y = pop(ram); ram[top(ram)] = (short) (ram[top(ram)] - y) test 0 ? -1 : 0
+    */
+    private static void writeComparisonHelper(ClassFileBuilder builder, String name, int ifOpcode) {
+        Label isTrue = new Label(), store = new Label();
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, name, RAM_TYPE, 3, MAX_STACK, builder.newCode()
+                .op(ALOAD_0).invokeStatic(POP, POP_TYPE).op(ISTORE_1)
+                .op(ALOAD_0).invokeStatic(TOP, POP_TYPE).op(ISTORE_2)
+                .op(ALOAD_0, ILOAD_2, ALOAD_0, ILOAD_2, SALOAD, ILOAD_1, ISUB, I2S).branch(ifOpcode, isTrue)
+                .op(ICONST_0).branch(GOTO, store)
+                .mark(isTrue).op(ICONST_M1)
+                .mark(store).op(SASTORE, RETURN));
+    }
+
+    /*
+        ram[top(ram)] = op ram[top(ram)]
+    */
+    private static void writeUnaryHelper(ClassFileBuilder builder, String name, int... opcodes) {
+        builder.addMethod(ACC_PRIVATE | ACC_STATIC, name, RAM_TYPE, 2, MAX_STACK, builder.newCode()
+                .op(ALOAD_0).invokeStatic(TOP, POP_TYPE).op(ISTORE_1)
+                .op(ALOAD_0, ILOAD_1, ALOAD_0, ILOAD_1, SALOAD).op(opcodes).op(SASTORE, RETURN));
+    }
+
+    /*
+        A vm function and its commands, read before anything is compiled
+    */
+    /*
+        A label, or the start of a part, that a split function can be entered at from its other parts
+    */
+    private static class EntryPoint {
+        private final int id;
+        private final int part;
+        private final Label target = new Label();
+
+        private EntryPoint(int id, int part) {
+            this.id = id;
+            this.part = part;
+        }
+    }
+
+    private static class CompiledFunction {
+        private final String name;
+        private final String sourceName;
+        private final String fileName;
+        private final int localCount;
+        private final int index;
+        private final List<String[]> body = new ArrayList<>();
+
+        private CompiledFunction(String name, String sourceName, String fileName, int localCount, int index) {
+            this.name = name;
+            this.sourceName = sourceName;
+            this.fileName = fileName;
+            this.localCount = localCount;
+            this.index = index;
+        }
+    }
+
+    /*
+        Each engine loads its program class through a loader of its own, so engines never see each other's classes
+    */
+    private static class ProgramLoader extends ClassLoader {
+        private ProgramLoader() {
+            super(ExecutionEngine.class.getClassLoader());
+        }
+
+        private Class<?> define(byte[] classFile) {
+            return defineClass(null, classFile, 0, classFile.length);
+        }
+    }
+
+    /**
+     * The RAM and step count at the end of a run.
+     */
+    public static class Result {
+
+        private final short[] ram;
+        private final long steps;
+        private final boolean halted;
+
+        /**
+         * Instantiates a new Result.
+         *
+         * @param ram    the RAM at the end of the run
+         * @param steps  the number of vm commands executed
+         * @param halted true if the program halted, false if it hit the step limit
+         */
+        public Result(short[] ram, long steps, boolean halted) {
+            this.ram = ram;
+            this.steps = steps;
+            this.halted = halted;
+        }
+
+        /**
+         * Gets ram.
+         *
+         * @return the RAM at the end of the run
+         */
+        public short[] getRam() {
+            return ram;
+        }
+
+        /**
+         * Gets steps.
+         *
+         * @return the number of vm commands executed
+         */
+        public long getSteps() {
+            return steps;
+        }
+
+        /**
+         * Whether the program halted.
+         *
+         * @return true if the program halted, false if it hit the step limit
+         */
+        public boolean isHalted() {
+            return halted;
+        }
+    }
+
+    /**
+     * Runs a vm program and prints the step count, time, and final stack.
+     *
+     * @param args the input file or directory, optionally followed by a step limit
+     */
+    public static void main(String[] args) {
+        try {
+            ExecutionEngine engine = fromPath(Paths.get(args[0]));
+            long maxSteps = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+            long start = System.nanoTime();
+            Result result = engine.run(maxSteps);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println((result.isHalted() ? "Halted" : "Stopped at the step limit") + " after "
+                    + result.getSteps() + " steps in " + millis + " ms");
+            short[] ram = result.getRam();
+            System.out.println("Stack: " + Arrays.toString(Arrays.copyOfRange(ram, STACK_BASE, Math.max(STACK_BASE, ram[SP]))));
+        } catch (TranslationException | IllegalStateException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
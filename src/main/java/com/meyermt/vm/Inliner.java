@@ -0,0 +1,188 @@
+package com.meyermt.vm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces calls to small hot functions with the body of the function, which saves the whole call and return sequence
+ * at the call sites that run the most. Works on the cleaned vm lines before they reach the Parser. An inlined call is
+ * written as an "inlined-call" pseudo command, the callee's body with its labels renamed, and an "inlined-end" pseudo
+ * command, and AsmCoder writes the frame setup and teardown for them.
+ *
+ * <p>A call is inlined when the calling code is hot in the profile and the callee is a hot leaf function: no more than
+ * MAX_INLINED_COMMANDS commands, no calls, no pops to the pointer segment, and no jumps to labels outside of itself.
+ * Statics are named after the file they're in, so a callee that uses statics is only inlined into its own file. Calls
+ * and functions with a count that isn't a number are left alone, so the Parser reports them as they were written.</p>
+ */
+public class Inliner {
+
+    private final static int MAX_INLINED_COMMANDS = 32;
+    private final static String INLINED_SUFFIX = "$inlined";
+
+    private final Profile profile;
+    private int inlinedCounter = 0;
+
+    /**
+     * Instantiates a new Inliner.
+     *
+     * @param profile the execution-count profile that picks the call sites
+     */
+    public Inliner(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Inlines the calls the profile marks as hot.
+     *
+     * @param cleanFilesAndLines vm file names mapped to their cleaned lines
+     * @return vm file names, in the same order, mapped to their lines with hot calls inlined
+     * @throws TranslationException if a vm file uses one of the pseudo commands
+     */
+    public Map<String, List<String>> inline(Map<String, List<String>> cleanFilesAndLines) {
+        Map<String, Callee> callees = findCallees(cleanFilesAndLines);
+        Map<String, List<String>> inlinedFilesAndLines = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> fileAndLines : cleanFilesAndLines.entrySet()) {
+            String fileName = fileAndLines.getKey();
+            List<String> inlinedLines = new ArrayList<>();
+            String caller = null;
+            String currentLabel = null;
+            for (String line : fileAndLines.getValue()) {
+                String[] args = line.split(" ");
+                // the output may hold pseudo commands, so the Parser takes them on trust and they are checked here
+                if (Parser.isPseudoCommand(args[0])) {
+                    throw new TranslationException(fileName, "Unknown vm command in " + fileName + ": " + line);
+                }
+                if (args[0].equals(Parser.FUNCTION) && args.length > 1) {
+                    caller = args[1];
+                    currentLabel = null;
+                } else if (args[0].equals(Parser.LABEL) && args.length > 1) {
+                    currentLabel = args[1];
+                } else if (args[0].equals(Parser.CALL) && args.length == 3 && isCount(args[2])
+                        && callees.containsKey(args[1]) && profile.isHot(caller, currentLabel)) {
+                    Callee callee = callees.get(args[1]);
+                    if (!callee.usesStatics || callee.fileName.equals(fileName)) {
+                        writeInlinedCall(callee, args[2], inlinedLines);
+                        continue;
+                    }
+                }
+                inlinedLines.add(line);
+            }
+            inlinedFilesAndLines.put(fileName, inlinedLines);
+        }
+        return inlinedFilesAndLines;
+    }
+
+    /*
+        Collects the hot functions small and simple enough to inline
+    */
+    private Map<String, Callee> findCallees(Map<String, List<String>> cleanFilesAndLines) {
+        Map<String, Callee> functions = new HashMap<>();
+        for (Map.Entry<String, List<String>> fileAndLines : cleanFilesAndLines.entrySet()) {
+            Callee current = null;
+            for (String line : fileAndLines.getValue()) {
+                String[] args = line.split(" ");
+                if (args[0].equals(Parser.FUNCTION)) {
+                    // a malformed function is never inlined, and its body doesn't belong to the one before it
+                    current = args.length == 3 && isCount(args[2]) ? new Callee(fileAndLines.getKey(), args[2]) : null;
+                    if (current != null) {
+                        functions.put(args[1], current);
+                    }
+                } else if (current != null) {
+                    current.body.add(args);
+                }
+            }
+        }
+        Map<String, Callee> callees = new HashMap<>();
+        functions.forEach((name, callee) -> {
+            if (profile.isHot(name) && isInlinable(callee)) {
+                callees.put(name, callee);
+            }
+        });
+        return callees;
+    }
+
+    private boolean isInlinable(Callee callee) {
+        if (callee.body.isEmpty() || callee.body.size() > MAX_INLINED_COMMANDS) {
+            return false;
+        }
+        Set<String> labels = new HashSet<>();
+        for (String[] args : callee.body) {
+            if (args[0].equals(Parser.LABEL) && args.length == 2) {
+                labels.add(args[1]);
+            }
+        }
+        for (String[] args : callee.body) {
+            String command = args[0];
+            if (command.equals(Parser.CALL) || command.equals(Parser.FUNCTION)) {
+                return false;
+            }
+            if (command.equals(Parser.POP) && args.length > 1 && args[1].equals(AsmCoder.POINTER)) {
+                return false;
+            }
+            if (command.equals(Parser.LABEL) && args.length != 2) {
+                return false;
+            }
+            if ((command.equals(Parser.GOTO) || command.equals(Parser.IF_GOTO))
+                    && (args.length != 2 || !labels.contains(args[1]))) {
+                return false;
+            }
+            if ((command.equals(Parser.PUSH) || command.equals(Parser.POP))
+                    && args.length > 1 && args[1].equals(AsmCoder.STATIC)) {
+                callee.usesStatics = true;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCount(String count) {
+        try {
+            Integer.parseInt(count);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /*
+        Writes the callee's body in place of the call. Labels get a suffix so every inlined copy has its own, and a
+        trailing return skips the jump to the exit label since that is the next instruction anyway
+    */
+    private void writeInlinedCall(Callee callee, String argCount, List<String> inlinedLines) {
+        String suffix = INLINED_SUFFIX + (++inlinedCounter);
+        String exitLabel = "INLINED_END" + inlinedCounter;
+        inlinedLines.add(Parser.INLINED_CALL + " " + argCount + " " + callee.localCount + " " + exitLabel);
+        List<String[]> body = callee.body;
+        for (int i = 0; i < body.size(); i++) {
+            String[] args = body.get(i);
+            String command = args[0];
+            if (command.equals(Parser.LABEL) || command.equals(Parser.GOTO) || command.equals(Parser.IF_GOTO)) {
+                inlinedLines.add(command + " " + args[1] + suffix);
+            } else if (command.equals(Parser.RETURN) && i == body.size() - 1) {
+                inlinedLines.add(Parser.INLINED_RETURN);
+            } else {
+                inlinedLines.add(String.join(" ", args));
+            }
+        }
+        inlinedLines.add(Parser.INLINED_END);
+    }
+
+    /*
+        A function that might be inlined, along with where it came from
+    */
+    private static class Callee {
+        private final String fileName;
+        private final String localCount;
+        private final List<String[]> body = new ArrayList<>();
+        private boolean usesStatics = false;
+
+        private Callee(String fileName, String localCount) {
+            this.fileName = fileName;
+            this.localCount = localCount;
+        }
+    }
+}
@@ -1,8 +1,7 @@
 package com.meyermt.vm;
 
-import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * Main driver for program that translates vm code to assembly code.
@@ -14,32 +13,31 @@ public class Main {
      * The entry point of application. Drives reading of file, iteration over vm code into parser, and writing of code out
      * to file.
      *
-     * @param args the input arguments
+     * @param args the input file or directory, optionally followed by an execution-count profile file
      */
     public static void main(String[] args) {
-        // read the .vm file in
-        VMFileReader reader = new VMFileReader(args[0]);
-        Map<String, List<String>> cleanFilesAndLines = reader.readFileOrFiles();
-
-        // first we will bootstrap the program
-        AsmCoder coder = new AsmCoder();
-        List<String> bootstrappedCode = coder.writeBootStrap();
-
-        // stream over the file, parse and translate
-
-        Parser parser = new Parser(coder);
-        List<String> assemblerOutput = cleanFilesAndLines.entrySet().stream()
-                .flatMap(fileAndLines -> {
-                    String fileName = fileAndLines.getKey().replace(".vm", "");
-                    return fileAndLines.getValue().stream()
-                            .map(line -> parser.parseAndTranslate(fileName, line));
-                    })
-                .collect(Collectors.toList());
-
-        bootstrappedCode.addAll(assemblerOutput);
-        // write the output
-        AsmFileWriter writer = new AsmFileWriter(reader.getInputPath());
-        writer.writeAsmFile(bootstrappedCode);
+        // an optional profile decides which functions get fast inline code and which get compact shared code
+        Profile profile = Profile.NONE;
+        if (args.length > 1) {
+            try {
+                profile = Profile.fromFile(Paths.get(args[1]));
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Unable to read profile from: " + args[1] + " (" + e.getMessage() + ")");
+                System.exit(1);
+            }
+        }
+
+        // read, translate, and write the output
+        Translator translator = new Translator(profile);
+        try {
+            translator.translateToFile(Paths.get(args[0]));
+        } catch (TranslationException e) {
+            System.out.println(e.getMessage());
+            if (e.getCause() instanceof IOException) {
+                e.getCause().printStackTrace();
+            }
+            System.exit(1);
+        }
     }
 
 }
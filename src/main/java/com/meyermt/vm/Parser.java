@@ -17,13 +17,16 @@ public class Parser {
     public final static String ADD = "add", SUB = "sub", NEG = "neg", EQ = "eq", GT = "gt", LT = "lt", AND = "and",
                                 OR = "or", NOT = "not", RETURN = "return";
     // the push and pop commands
-    private final static String POP = "pop", PUSH = "push";
+    public final static String POP = "pop", PUSH = "push";
 
     // the function and call commands
-    private final static String FUNCTION = "function", CALL = "call";
+    public final static String FUNCTION = "function", CALL = "call";
 
     // label, goto, if-goto
-    private final static String LABEL = "label", GOTO = "goto", IF_GOTO = "if-goto";
+    public final static String LABEL = "label", GOTO = "goto", IF_GOTO = "if-goto";
+
+    // pseudo commands the Inliner writes around an inlined call, only accepted through parseAndTranslateInlined
+    final static String INLINED_CALL = "inlined-call", INLINED_RETURN = "inlined-return", INLINED_END = "inlined-end";
 
     private Map<String, String> statArithmeticToAsm = new HashMap<>();
     private Map<String, Function<String, String>> statControlToAsm = new HashMap<>();
@@ -31,6 +34,14 @@ public class Parser {
     private Map<String, Function<List<String>, String>> argumentCommandToAsm = new HashMap<>();
     private int commandCounter = 0;
 
+    // operands each command takes, shared with ExecutionEngine so both backends accept the same lines
+    private final static Map<String, Integer> operandCounts = new HashMap<>();
+    private final static Map<String, Integer> pseudoOperandCounts = new HashMap<>();
+
+    static {
+        loadOperandCounts();
+    }
+
     /**
      * Instantiates a new Parser. Must have a filename in order to be able to pass to AsmCoder to name static variables.
      *
@@ -49,19 +60,93 @@ public class Parser {
      * may use a counter to "dynamically" generate labels for the assembly code. If neither, assumes it is a push or pop
      * command.
      *
+     * @param fileName the vm file name, e.g. "Main.vm"
      * @param vmLine the vm line
      * @return the string
+     * @throws TranslationException if the line is not a known or well-formed vm command
      */
     public String parseAndTranslate(String fileName, String vmLine) {
-        List<String> args = new ArrayList<>(Arrays.asList(vmLine.split(" ")));
-        args.add(fileName);
+        return parseAndTranslate(fileName, vmLine, false);
+    }
+
+    /**
+     * Parse and translate a line written by the Inliner, which may also be one of the inlined pseudo commands. Lines
+     * from vm files must go through parseAndTranslate, so a vm file can't switch AsmCoder into an inlined call.
+     *
+     * @param fileName the vm file name, e.g. "Main.vm"
+     * @param vmLine the vm line or pseudo command
+     * @return the string
+     * @throws TranslationException if the line is not a known or well-formed command
+     */
+    String parseAndTranslateInlined(String fileName, String vmLine) {
+        return parseAndTranslate(fileName, vmLine, true);
+    }
+
+    /**
+     * Whether a command is one of the pseudo commands the Inliner writes.
+     *
+     * @param command the command
+     * @return true if it is a pseudo command
+     */
+    static boolean isPseudoCommand(String command) {
+        return command.equals(INLINED_CALL) || command.equals(INLINED_RETURN) || command.equals(INLINED_END);
+    }
+
+    /**
+     * Splits a line from a vm file and checks that it is a known vm command with the right number of operands.
+     *
+     * @param fileName the vm file name, e.g. "Main.vm"
+     * @param vmLine the vm line
+     * @return the command followed by its operands
+     * @throws TranslationException if the command is unknown or has the wrong number of operands
+     */
+    static String[] checkOperands(String fileName, String vmLine) {
+        return checkOperands(fileName, vmLine, false);
+    }
+
+    private static String[] checkOperands(String fileName, String vmLine, boolean pseudoCommandsAllowed) {
+        String[] args = vmLine.split(" ");
+        Integer operandCount = operandCounts.get(args[0]);
+        if (operandCount == null && pseudoCommandsAllowed) {
+            operandCount = pseudoOperandCounts.get(args[0]);
+        }
+        if (operandCount == null) {
+            throw new TranslationException(fileName, "Unknown vm command in " + fileName + ": " + vmLine);
+        }
+        if (args.length != operandCount + 1) {
+            throw new TranslationException(fileName, "Wrong number of operands in " + fileName + ": " + vmLine);
+        }
+        return args;
+    }
+
+    private String parseAndTranslate(String fileName, String vmLine, boolean pseudoCommandsAllowed) {
+        // check before the file name goes on the end, or a missing operand would quietly become the file name
+        List<String> args = new ArrayList<>(Arrays.asList(checkOperands(fileName, vmLine, pseudoCommandsAllowed)));
         String command = args.get(0);
+        // AsmCoder names static variables after the file without its extension
+        args.add(fileName.replace(".vm", ""));
+        try {
+            return translate(command, args);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new TranslationException(fileName,
+                    "Malformed vm command in " + fileName + ": " + vmLine + " (" + e.getMessage() + ")", e);
+        }
+    }
+
+    private String translate(String command, List<String> args) {
         if (statArithmeticToAsm.containsKey(command)) {
             return statArithmeticToAsm.get(command);
         } else if (dynArithmeticToAsm.containsKey(command)) {
             // dynamic arithmetic requires us to increment certain labels
             commandCounter++;
             return dynArithmeticToAsm.get(command).apply(commandCounter);
+        } else if (command.equals(RETURN)) {
+            // return depends on whether the current function is hot, so it can't be cached up front
+            return coder.getReturnAsm();
+        } else if (command.equals(INLINED_RETURN)) {
+            return coder.getInlinedReturnAsm();
+        } else if (command.equals(INLINED_END)) {
+            return coder.getInlinedEndAsm();
         } else if (statControlToAsm.containsKey(command)) {
             return statControlToAsm.get(command).apply(args.get(1));
         } else {
@@ -76,7 +161,6 @@ public class Parser {
         statArithmeticToAsm.put(NOT, coder.getNotAsm());
         statArithmeticToAsm.put(AND, coder.getAndAsm());
         statArithmeticToAsm.put(OR, coder.getOrAsm());
-        statArithmeticToAsm.put(RETURN, coder.getReturnAsm());
     }
 
     private void loadDynArithmeticMap(AsmCoder coder) {
@@ -90,6 +174,22 @@ public class Parser {
         argumentCommandToAsm.put(POP, coder.popToAsm);
         argumentCommandToAsm.put(FUNCTION, coder.functionToAsm);
         argumentCommandToAsm.put(CALL, coder.callToAsm);
+        argumentCommandToAsm.put(INLINED_CALL, coder.inlinedCallToAsm);
+    }
+
+    private static void loadOperandCounts() {
+        for (String command : new String[]{ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT, RETURN}) {
+            operandCounts.put(command, 0);
+        }
+        for (String command : new String[]{LABEL, GOTO, IF_GOTO}) {
+            operandCounts.put(command, 1);
+        }
+        for (String command : new String[]{PUSH, POP, FUNCTION, CALL}) {
+            operandCounts.put(command, 2);
+        }
+        pseudoOperandCounts.put(INLINED_RETURN, 0);
+        pseudoOperandCounts.put(INLINED_END, 0);
+        pseudoOperandCounts.put(INLINED_CALL, 3);
     }
 
     private void loadStatControlMap(AsmCoder coder) {
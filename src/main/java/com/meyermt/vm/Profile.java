@@ -0,0 +1,147 @@
+package com.meyermt.vm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution-count profile used to decide which code gets the fast inline assembly, which gets the compact shared form,
+ * and which calls get inlined. The profile file is plain text, one entry per line, with "//" comments allowed:
+ *
+ * <pre>
+ * threshold 500                      // optional, defaults to 100
+ * function Main.fibonacci 120000     // times the function was called
+ * branch Main.fibonacci LOOP 900000  // times a label in the function was branched to
+ * </pre>
+ *
+ * A function is hot when its call count reaches the threshold. The code following a label, up to the next label, is hot
+ * when that label's branch count reaches the threshold, so a hot loop in a cold function still gets the fast form.
+ * Anything missing from the profile is treated as cold.
+ */
+public class Profile {
+
+    /**
+     * Profile used when none is given. Every function is treated as hot, so the output matches an unprofiled run.
+     */
+    public static final Profile NONE = new Profile(Collections.emptyMap(), Collections.emptyMap(), 0, false);
+
+    private final static String THRESHOLD = "threshold", FUNCTION = "function", BRANCH = "branch";
+    private final static long DEFAULT_THRESHOLD = 100;
+
+    private final Map<String, Long> callCounts;
+    private final Map<String, Map<String, Long>> branchCounts;
+    private final long threshold;
+    private final boolean active;
+
+    private Profile(Map<String, Long> callCounts, Map<String, Map<String, Long>> branchCounts, long threshold,
+                    boolean active) {
+        this.callCounts = callCounts;
+        this.branchCounts = branchCounts;
+        this.threshold = threshold;
+        this.active = active;
+    }
+
+    /**
+     * Reads a profile file.
+     *
+     * @param profilePath the profile file path
+     * @return the profile
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a line is not a valid profile entry
+     */
+    public static Profile fromFile(Path profilePath) throws IOException {
+        return fromLines(Files.readAllLines(profilePath));
+    }
+
+    /**
+     * Builds a profile from the lines of a profile file.
+     *
+     * @param profileLines the profile lines
+     * @return the profile
+     * @throws IllegalArgumentException if a line is not a valid profile entry
+     */
+    public static Profile fromLines(List<String> profileLines) {
+        Map<String, Long> callCounts = new HashMap<>();
+        Map<String, Map<String, Long>> branchCounts = new HashMap<>();
+        long threshold = DEFAULT_THRESHOLD;
+        for (String rawLine : profileLines) {
+            String line = rawLine.replaceAll("(//.*)", "").trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] args = line.split("\\s+");
+            if (args[0].equals(THRESHOLD) && args.length == 2) {
+                threshold = parseCount(args[1], rawLine);
+            } else if (args[0].equals(FUNCTION) && args.length == 3) {
+                callCounts.merge(args[1], parseCount(args[2], rawLine), Long::sum);
+            } else if (args[0].equals(BRANCH) && args.length == 4) {
+                branchCounts.computeIfAbsent(args[1], function -> new HashMap<>())
+                        .merge(args[2], parseCount(args[3], rawLine), Long::sum);
+            } else {
+                throw new IllegalArgumentException("Unrecognized profile entry: " + rawLine);
+            }
+        }
+        return new Profile(callCounts, branchCounts, threshold, true);
+    }
+
+    /**
+     * Whether this profile came from a profile file. Calls are only inlined for an active profile.
+     *
+     * @return true if active
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Whether the function is called often enough to be worth the fast inline assembly. Code outside of any function
+     * (the bootstrap) is always hot.
+     *
+     * @param functionName the vm function name, or null for bootstrap code
+     * @return true if hot
+     */
+    public boolean isHot(String functionName) {
+        if (!active || functionName == null) {
+            return true;
+        }
+        return callCounts.getOrDefault(functionName, 0L) >= threshold;
+    }
+
+    /**
+     * Whether the code following a label is branched to often enough to be worth the fast inline assembly, whatever the
+     * function's own call count.
+     *
+     * @param functionName the vm function the label is in
+     * @param label        the vm label
+     * @return true if hot
+     */
+    public boolean isHotBranch(String functionName, String label) {
+        if (!active) {
+            return true;
+        }
+        return branchCounts.getOrDefault(functionName, Collections.emptyMap()).getOrDefault(label, 0L) >= threshold;
+    }
+
+    /**
+     * Whether code in the function, after the given label, is hot.
+     *
+     * @param functionName the vm function name, or null for bootstrap code
+     * @param label        the last label seen in the function, or null if there has been none
+     * @return true if hot
+     */
+    public boolean isHot(String functionName, String label) {
+        return isHot(functionName) || (label != null && isHotBranch(functionName, label));
+    }
+
+    private static long parseCount(String count, String rawLine) {
+        try {
+            return Long.parseLong(count);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid count in profile entry: " + rawLine, e);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.meyermt.vm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Scaling regression suite. Runs generated programs through the full VMFileReader, Parser, AsmFileWriter pipeline and
+ * records wall time and peak heap for each one. There is one sweep per dimension VMProgramGenerator can vary: total
+ * lines, file count, functions per file, call depth, and comparison density. The count sweeps double the count and let
+ * the program grow with it, the shape sweeps hold the size and change the shape.
+ *
+ * <p>Each point is measured over at least MIN_RUNS runs and MIN_POINT_NANOS of total time, and keeps the median run,
+ * so a single slow run from JIT or gc noise doesn't move it. Wall time is reported, but the gate uses the CPU time of
+ * the translating thread, which the JIT and gc threads can't inflate on a busy or single-core machine. Only the count
+ * sweeps can fail: a least-squares fit of log CPU time and log peak heap against log assembly lines over their top
+ * FIT_POINTS points gives the growth exponent,
+ * and a sweep fails when either exponent is over MAX_EXPONENT. Fitting only the top end keeps fixed startup costs from
+ * hiding a superlinear term there. The shape sweeps hold the size fixed, so they say nothing about growth and are only
+ * reported.</p>
+ */
+public class ScalingSuite {
+
+    private final static long DEFAULT_MIN_LINES = 100_000, DEFAULT_MAX_LINES = 3_200_000;
+    private final static int SIZE_FACTOR = 2, MIN_RUNS = 5, FIT_POINTS = 3;
+    private final static long MIN_POINT_NANOS = 2_000_000_000L;
+    // linear scaling has an exponent of 1 and quadratic 2, the slack covers what noise a three point fit still has
+    private final static double MAX_EXPONENT = 1.5;
+    private final static long HEAP_SAMPLE_MILLIS = 1;
+
+    // the shape every sweep starts from
+    private final static int BASE_FILES = 8, BASE_FUNCTIONS = 64, BASE_DEPTH = 8;
+    private final static double BASE_DENSITY = 0.2;
+    private final static long SEED = 1;
+
+    private final Path workDir;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Instantiates a new Scaling suite.
+     *
+     * @param workDir the directory the programs and their .asm output are written to
+     */
+    public ScalingSuite(Path workDir) {
+        this.workDir = workDir;
+    }
+
+    /**
+     * Generates a program and runs the pipeline over it, keeping the median times and smallest peak heap of the runs.
+     *
+     * @param label       what this point of the sweep varies, for the printed table
+     * @param generator   the generator for the program's shape
+     * @param targetLines the program size
+     * @return the measurement
+     * @throws IOException if the program cannot be generated
+     */
+    public Measurement measure(String label, VMProgramGenerator generator, long targetLines) throws IOException {
+        Path programDir = workDir.resolve("program");
+        generator.writeTo(programDir, targetLines);
+        long vmLines = countLines(programDir);
+
+        List<Long> runNanos = new ArrayList<>();
+        List<Long> runCpuNanos = new ArrayList<>();
+        long totalNanos = 0;
+        long bestPeakHeap = Long.MAX_VALUE;
+        Path asmFile = null;
+        while (runNanos.size() < MIN_RUNS || totalNanos < MIN_POINT_NANOS) {
+            System.gc();
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            long cpuStart = cpuTime();
+            long start = System.nanoTime();
+            asmFile = new Translator().translateToFile(programDir);
+            long nanos = System.nanoTime() - start;
+            runCpuNanos.add(cpuTime() - cpuStart);
+            runNanos.add(nanos);
+            totalNanos += nanos;
+            bestPeakHeap = Math.min(bestPeakHeap, sampler.finish());
+        }
+        long asmLines = countLines(asmFile);
+        deleteRecursively(programDir);
+        return new Measurement(label, vmLines, asmLines, median(runNanos), median(runCpuNanos), bestPeakHeap,
+                runNanos.size());
+    }
+
+    /*
+        CPU time of this thread, or wall time where the JVM can't measure it
+    */
+    private long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private long countLines(Path path) throws IOException {
+        long lines = 0;
+        try (Stream<Path> files = Files.isDirectory(path) ? Files.list(path) : Stream.of(path)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                try (Stream<String> fileLines = Files.lines(file)) {
+                    lines += fileLines.count();
+                }
+            }
+        }
+        return lines;
+    }
+
+    private void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * The growth exponent of CPU time or peak heap against lines of assembly over the top FIT_POINTS measurements of a
+     * sweep, whichever is larger. Linear scaling gives 1.
+     *
+     * @param measurements the measurements of one sweep, smallest program first
+     * @return the exponent
+     */
+    public static double upperExponent(List<Measurement> measurements) {
+        List<Measurement> upper = measurements.subList(Math.max(0, measurements.size() - FIT_POINTS),
+                measurements.size());
+        return Math.max(logLogSlope(upper, Measurement::getCpuNanos),
+                logLogSlope(upper, Measurement::getPeakHeapBytes));
+    }
+
+    /*
+        Least-squares slope of log cost against log assembly lines
+    */
+    private static double logLogSlope(List<Measurement> measurements, ToLongFunction<Measurement> cost) {
+        double meanX = 0, meanY = 0;
+        for (Measurement measurement : measurements) {
+            meanX += Math.log(measurement.getAsmLines()) / measurements.size();
+            meanY += Math.log(cost.applyAsLong(measurement)) / measurements.size();
+        }
+        double covariance = 0, variance = 0;
+        for (Measurement measurement : measurements) {
+            double dx = Math.log(measurement.getAsmLines()) - meanX;
+            covariance += dx * (Math.log(cost.applyAsLong(measurement)) - meanY);
+            variance += dx * dx;
+        }
+        return covariance / variance;
+    }
+
+    /*
+        Polls the heap in the background while the pipeline runs. The pools each reach their own peak at different
+        times, so their summed peaks overstate the heap, while the heap total sampled at one moment doesn't
+    */
+    private static class HeapSampler extends Thread {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile boolean sampling = true;
+        private volatile long peak = 0;
+
+        private HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (sampling) {
+                sample();
+                try {
+                    Thread.sleep(HEAP_SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+        }
+
+        private long finish() {
+            sampling = false;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+            return peak;
+        }
+    }
+
+    /**
+     * Time and peak heap for translating one program.
+     */
+    public static class Measurement {
+
+        private final String label;
+        private final long vmLines;
+        private final long asmLines;
+        private final long nanos;
+        private final long cpuNanos;
+        private final long peakHeapBytes;
+        private final int runs;
+
+        /**
+         * Instantiates a new Measurement.
+         *
+         * @param label         what this point of the sweep varies
+         * @param vmLines       vm lines in the program
+         * @param asmLines      assembly lines written for the program
+         * @param nanos         wall time of the median run
+         * @param cpuNanos      CPU time of the translating thread in the median run
+         * @param peakHeapBytes peak heap of the leanest run
+         * @param runs          how many runs were measured
+         */
+        public Measurement(String label, long vmLines, long asmLines, long nanos, long cpuNanos, long peakHeapBytes,
+                           int runs) {
+            this.label = label;
+            this.vmLines = vmLines;
+            this.asmLines = asmLines;
+            this.nanos = nanos;
+            this.cpuNanos = cpuNanos;
+            this.peakHeapBytes = peakHeapBytes;
+            this.runs = runs;
+        }
+
+        /**
+         * Gets label.
+         *
+         * @return what this point of the sweep varies
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Gets vm lines.
+         *
+         * @return the vm line count
+         */
+        public long getVmLines() {
+            return vmLines;
+        }
+
+        /**
+         * Gets asm lines.
+         *
+         * @return the assembly line count
+         */
+        public long getAsmLines() {
+            return asmLines;
+        }
+
+        /**
+         * Gets nanos.
+         *
+         * @return the wall time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Gets cpu nanos.
+         *
+         * @return the CPU time of the translating thread in nanoseconds
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * Gets peak heap bytes.
+         *
+         * @return the peak heap in bytes
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        /**
+         * Gets runs.
+         *
+         * @return how many runs were measured
+         */
+        public int getRuns() {
+            return runs;
+        }
+
+        /**
+         * Gets nanos per asm line.
+         *
+         * @return the wall time per assembly line
+         */
+        public double getNanosPerAsmLine() {
+            return (double) nanos / asmLines;
+        }
+
+        /**
+         * Gets heap bytes per asm line.
+         *
+         * @return the peak heap per assembly line
+         */
+        public double getHeapBytesPerAsmLine() {
+            return (double) peakHeapBytes / asmLines;
+        }
+    }
+
+    /**
+     * Runs every sweep, prints a table for each, and exits with 1 if any count sweep scales superlinearly.
+     *
+     * @param args optionally the largest program size, the smallest program size, and a work directory
+     */
+    public static void main(String[] args) throws IOException {
+        long maxLines = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_MAX_LINES;
+        long minLines = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MIN_LINES;
+        Path workDir = args.length > 2 ? Paths.get(args[2]) : Files.createTempDirectory("vm-scaling");
+        Files.createDirectories(workDir);
+        ScalingSuite suite = new ScalingSuite(workDir);
+
+        // warm up the JIT so the first point of the first sweep isn't charged for compilation
+        suite.measure("warmup", new VMProgramGenerator(BASE_FILES, BASE_FUNCTIONS, BASE_DEPTH, BASE_DENSITY, SEED),
+                minLines);
+
+        // the shape sweeps run at a quarter of the largest size, the count sweeps double up to half of it
+        long shapeLines = Math.max(minLines, maxLines / 4);
+        long linesPerFunction = Math.max(1, shapeLines / (BASE_FILES * BASE_FUNCTIONS));
+        boolean failed = false;
+
+        List<Measurement> lines = new ArrayList<>();
+        for (long size = minLines; size <= maxLines; size *= SIZE_FACTOR) {
+            lines.add(suite.measure("lines " + size,
+                    new VMProgramGenerator(BASE_FILES, BASE_FUNCTIONS, BASE_DEPTH, BASE_DENSITY, SEED), size));
+        }
+        failed |= report("total lines", lines, true);
+
+        List<Measurement> files = new ArrayList<>();
+        for (int fileCount = BASE_FILES / 4; fileCount <= BASE_FILES * 2; fileCount *= SIZE_FACTOR) {
+            files.add(suite.measure("files " + fileCount,
+                    new VMProgramGenerator(fileCount, BASE_FUNCTIONS, BASE_DEPTH, BASE_DENSITY, SEED),
+                    linesPerFunction * fileCount * BASE_FUNCTIONS));
+        }
+        failed |= report("file count", files, true);
+
+        List<Measurement> functions = new ArrayList<>();
+        for (int functionCount = BASE_FUNCTIONS / 4; functionCount <= BASE_FUNCTIONS * 2;
+                functionCount *= SIZE_FACTOR) {
+            functions.add(suite.measure("functions " + functionCount,
+                    new VMProgramGenerator(BASE_FILES, functionCount, BASE_DEPTH, BASE_DENSITY, SEED),
+                    linesPerFunction * BASE_FILES * functionCount));
+        }
+        failed |= report("functions per file", functions, true);
+
+        List<Measurement> depths = new ArrayList<>();
+        for (int depth : new int[]{1, 8, 64, BASE_FILES * BASE_FUNCTIONS}) {
+            depths.add(suite.measure("depth " + depth,
+                    new VMProgramGenerator(BASE_FILES, BASE_FUNCTIONS, depth, BASE_DENSITY, SEED), shapeLines));
+        }
+        report("call depth", depths, false);
+
+        List<Measurement> densities = new ArrayList<>();
+        for (double density : new double[]{0.0, 0.25, 0.5, 1.0}) {
+            densities.add(suite.measure("density " + density,
+                    new VMProgramGenerator(BASE_FILES, BASE_FUNCTIONS, BASE_DEPTH, density, SEED), shapeLines));
+        }
+        report("comparison density", densities, false);
+
+        if (failed) {
+            System.out.println("Superlinear scaling regression");
+            System.exit(1);
+        }
+    }
+
+    /*
+        Prints one sweep and returns whether it failed. Only a gated sweep can fail
+    */
+    private static boolean report(String sweep, List<Measurement> measurements, boolean gated) {
+        System.out.println("Sweep over " + sweep);
+        System.out.println(String.format("%18s %12s %12s %10s %10s %6s %14s %12s", "", "vm lines", "asm lines", "ms",
+                "cpu ms", "runs", "ns/asm line", "peak heap MB"));
+        for (Measurement measurement : measurements) {
+            System.out.println(String.format("%18s %12d %12d %10d %10d %6d %14.1f %12d", measurement.getLabel(),
+                    measurement.getVmLines(), measurement.getAsmLines(), measurement.getNanos() / 1_000_000,
+                    measurement.getCpuNanos() / 1_000_000, measurement.getRuns(), measurement.getNanosPerAsmLine(),
+                    measurement.getPeakHeapBytes() / (1024 * 1024)));
+        }
+        boolean failed = false;
+        if (gated) {
+            double exponent = upperExponent(measurements);
+            failed = exponent > MAX_EXPONENT;
+            System.out.println(String.format("cost grows as lines^%.2f over the top %d points, limit %.2f%s", exponent,
+                    Math.min(FIT_POINTS, measurements.size()), MAX_EXPONENT, failed ? ", FAILED" : ""));
+        } else {
+            System.out.println("program size is fixed, so this sweep is reported but not gated");
+        }
+        System.out.println();
+        return failed;
+    }
+}
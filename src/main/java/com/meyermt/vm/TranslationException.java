@@ -0,0 +1,52 @@
+package com.meyermt.vm;
+
+/**
+ * Thrown when vm code cannot be read, translated, or written out. Carries the vm file name when the problem is tied to
+ * one file so callers can report it without parsing the message.
+ */
+public class TranslationException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+
+    /**
+     * Instantiates a new Translation exception that is not tied to a single vm file.
+     *
+     * @param message the message
+     */
+    public TranslationException(String message) {
+        this(null, message, null);
+    }
+
+    /**
+     * Instantiates a new Translation exception for a vm file.
+     *
+     * @param fileName the vm file name, or null if not tied to one file
+     * @param message  the message
+     */
+    public TranslationException(String fileName, String message) {
+        this(fileName, message, null);
+    }
+
+    /**
+     * Instantiates a new Translation exception for a vm file with the underlying cause.
+     *
+     * @param fileName the vm file name, or null if not tied to one file
+     * @param message  the message
+     * @param cause    the cause
+     */
+    public TranslationException(String fileName, String message, Throwable cause) {
+        super(message, cause);
+        this.fileName = fileName;
+    }
+
+    /**
+     * Gets the vm file name the error came from.
+     *
+     * @return the file name, or null if not tied to one file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+}
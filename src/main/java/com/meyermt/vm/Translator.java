@@ -0,0 +1,100 @@
+package com.meyermt.vm;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Embeddable entry point for translating vm code to assembly code. A Translator holds no per-run state; every call
+ * gets its own AsmCoder and Parser, so one instance can be shared across threads and reused for many translations.
+ * Errors are reported as TranslationException instead of exiting the JVM.
+ */
+public class Translator {
+
+    private final Profile profile;
+
+    /**
+     * Instantiates a new Translator that writes the fast inline form everywhere.
+     */
+    public Translator() {
+        this(Profile.NONE);
+    }
+
+    /**
+     * Instantiates a new Translator that uses an execution-count profile to choose inline or shared code.
+     *
+     * @param profile the execution-count profile
+     */
+    public Translator(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Translates in-memory vm sources. Comments and blank lines are removed before translation.
+     *
+     * @param sources vm file names (e.g. "Main.vm") mapped to their raw lines
+     * @return the assembly code, bootstrap included
+     * @throws TranslationException if a vm command cannot be translated
+     */
+    public List<String> translate(Map<String, List<String>> sources) {
+        Map<String, List<String>> cleanFilesAndLines = sources.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        fileAndLines -> VMFileReader.removeComments(fileAndLines.getValue())));
+        return translateClean(cleanFilesAndLines);
+    }
+
+    /**
+     * Reads and translates a .vm file or a directory of .vm files.
+     *
+     * @param input the .vm file or directory
+     * @return the assembly code, bootstrap included
+     * @throws TranslationException if the input cannot be read or a vm command cannot be translated
+     */
+    public List<String> translate(Path input) {
+        VMFileReader reader = new VMFileReader(input.toString());
+        return translateClean(reader.readFileOrFiles());
+    }
+
+    /**
+     * Reads and translates a .vm file or a directory of .vm files and writes the .asm file next to it.
+     *
+     * @param input the .vm file or directory
+     * @return the path of the written .asm file
+     * @throws TranslationException if the input cannot be read, translated, or written out
+     */
+    public Path translateToFile(Path input) {
+        List<String> asmCode = translate(input);
+        AsmFileWriter writer = new AsmFileWriter(input);
+        return writer.writeAsmFile(asmCode);
+    }
+
+    /*
+        Inlines hot calls, bootstraps, then streams over the cleaned files, parsing and translating each line
+    */
+    private List<String> translateClean(Map<String, List<String>> cleanFilesAndLines) {
+        boolean inlining = profile.isActive();
+        Map<String, List<String>> filesAndLines = inlining
+                ? new Inliner(profile).inline(cleanFilesAndLines)
+                : cleanFilesAndLines;
+
+        // a fresh coder and parser per run keeps the label counters from leaking between translations
+        AsmCoder coder = new AsmCoder(profile);
+        List<String> bootstrappedCode = coder.writeBootStrap();
+
+        Parser parser = new Parser(coder);
+        List<String> assemblerOutput = filesAndLines.entrySet().stream()
+                .flatMap(fileAndLines -> {
+                    String fileName = fileAndLines.getKey();
+                    return fileAndLines.getValue().stream()
+                            .map(line -> inlining
+                                    ? parser.parseAndTranslateInlined(fileName, line)
+                                    : parser.parseAndTranslate(fileName, line));
+                    })
+                .collect(Collectors.toList());
+
+        bootstrappedCode.addAll(assemblerOutput);
+        bootstrappedCode.addAll(coder.writeSharedRoutines());
+        return bootstrappedCode;
+    }
+}
@@ -35,9 +35,12 @@ public class VMFileReader {
         return this.inputPath;
     }
 
-    /*
-        Reads the file. Will exit the program if IOException encountered or file is not of .vm extension
-    */
+    /**
+     * Reads the file or the .vm files in the directory and cleans their lines.
+     *
+     * @return vm file names mapped to their cleaned lines
+     * @throws TranslationException if a file cannot be read or the input is not a .vm file or a directory with one
+     */
     public Map<String, List<String>> readFileOrFiles() {
         // if the filename doesn't have the .vm extension we will check if it is a directory and if it has VM files
         if (!inputPath.toString().endsWith(VM_EXT)) {
@@ -48,16 +51,14 @@ public class VMFileReader {
                         .filter(file -> file.getAbsolutePath().endsWith(VM_EXT))
                         .collect(Collectors.toList());
                 if (vmFiles.isEmpty()) {
-                    System.out.println("Directory specified has no .vm files. Please re-run with a new directory");
-                    System.exit(1);
+                    throw new TranslationException("Directory specified has no .vm files. Please re-run with a new directory");
                 } else {
                     return vmFiles.stream()
                             .map(file -> tryReadingLines(file.toPath()))
                             .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
                 }
             } else {
-                System.out.println("Only able to read files with .vm extension or a directory containing .vm files. Please rename and try again.");
-                System.exit(1);
+                throw new TranslationException("Only able to read files with .vm extension or a directory containing .vm files. Please rename and try again.");
             }
         } else {
             Map<String, List<String>> oneFileMap = new HashMap<>();
@@ -65,8 +66,6 @@ public class VMFileReader {
             oneFileMap.put(oneFile.getKey(), oneFile.getValue());
             return oneFileMap;
         }
-        // can't actually hit this but needed to compile
-        return null;
     }
 
     private Map.Entry<String, List<String>> tryReadingLines(Path filePath) {
@@ -75,17 +74,14 @@ public class VMFileReader {
             List<String> cleanFileLines = removeComments(fileLines);
             return new AbstractMap.SimpleImmutableEntry<>(filePath.getFileName().toString(), cleanFileLines);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.out.println("Unable to read file from: " + filePath);
-            System.exit(1);
+            throw new TranslationException(filePath.getFileName().toString(), "Unable to read file from: " + filePath, e);
         }
-        return null;
     }
 
     /*
         Removes blank lines, tabs, and comments from code
     */
-    private List<String> removeComments(List<String> fileLines) {
+    static List<String> removeComments(List<String> fileLines) {
         return fileLines.stream()
                 .map(commentful -> commentful.replaceAll("(//.*)", ""))
                 // remove tab characters, although in theory there shouldn't be any
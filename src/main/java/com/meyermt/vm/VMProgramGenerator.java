@@ -0,0 +1,218 @@
+package com.meyermt.vm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Generates valid, deterministic vm programs of a given size and shape for exercising the translator. A program is a
+ * Sys.vm file plus a number of Gen&lt;n&gt;.vm files. Functions are linked into call chains of the configured depth and
+ * Sys.init calls the head of every chain once before halting, so every generated program terminates. Function bodies
+ * are straight-line arithmetic with forward-only branches after comparisons.
+ */
+public class VMProgramGenerator {
+
+    private final static String SYS_FILE = "Sys.vm", GEN_PREFIX = "Gen", VM_EXT = ".vm";
+    private final static String[] BINARY_OPS = {Parser.ADD, Parser.SUB, Parser.AND, Parser.OR};
+    private final static String[] COMPARISON_OPS = {Parser.EQ, Parser.GT, Parser.LT};
+    private final static int STATICS_PER_FILE = 8, TEMPS = 8, LOCALS = 2;
+
+    private final int fileCount;
+    private final int functionsPerFile;
+    private final int callDepth;
+    private final double comparisonDensity;
+    private final long seed;
+
+    /**
+     * Instantiates a new Vm program generator.
+     *
+     * @param fileCount         number of Gen files, not counting Sys.vm
+     * @param functionsPerFile  number of functions in each Gen file
+     * @param callDepth         length of each call chain, 1 meaning no function calls another
+     * @param comparisonDensity fraction of body statements that are comparisons with a branch, from 0 to 1
+     * @param seed              random seed, the same seed and shape always give the same program
+     */
+    public VMProgramGenerator(int fileCount, int functionsPerFile, int callDepth, double comparisonDensity, long seed) {
+        if (fileCount < 1 || functionsPerFile < 1 || callDepth < 1) {
+            throw new IllegalArgumentException("File count, functions per file, and call depth must be at least 1");
+        }
+        if (comparisonDensity < 0 || comparisonDensity > 1) {
+            throw new IllegalArgumentException("Comparison density must be between 0 and 1");
+        }
+        this.fileCount = fileCount;
+        this.functionsPerFile = functionsPerFile;
+        this.callDepth = callDepth;
+        this.comparisonDensity = comparisonDensity;
+        this.seed = seed;
+    }
+
+    /**
+     * Generates a program straight to .vm files in a directory, so programs larger than the heap can be produced.
+     *
+     * @param outputDir   the directory to write to, created if missing
+     * @param targetLines approximate total number of vm lines
+     * @throws IOException if a file cannot be written
+     */
+    public void writeTo(Path outputDir, long targetLines) throws IOException {
+        Files.createDirectories(outputDir);
+        writeFile(outputDir.resolve(SYS_FILE), this::writeSys);
+        for (int file = 0; file < fileCount; file++) {
+            int fileIndex = file;
+            writeFile(outputDir.resolve(GEN_PREFIX + file + VM_EXT),
+                    out -> writeGenFile(fileIndex, linesPerFunction(targetLines), out));
+        }
+    }
+
+    private void writeFile(Path path, Consumer<Consumer<String>> contents) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, Charset.defaultCharset())) {
+            contents.accept(line -> {
+                try {
+                    writer.write(line);
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long linesPerFunction(long targetLines) {
+        return Math.max(1, targetLines / ((long) fileCount * functionsPerFile));
+    }
+
+    /*
+        Sys.init calls the head of every call chain, then parks in the usual end loop
+    */
+    private void writeSys(Consumer<String> out) {
+        out.accept("function Sys.init 0");
+        for (int global = 0; global < fileCount * functionsPerFile; global += callDepth) {
+            out.accept("push constant " + (global % 32768));
+            out.accept("call " + functionName(global) + " 1");
+            out.accept("pop temp 0");
+        }
+        out.accept("label Sys.init$END");
+        out.accept("goto Sys.init$END");
+    }
+
+    private void writeGenFile(int file, long linesPerFunction, Consumer<String> out) {
+        // seeding per file keeps each file the same no matter how many other files are generated
+        Random random = new Random(seed * 31 + file);
+        for (int function = 0; function < functionsPerFile; function++) {
+            writeFunction(file * functionsPerFile + function, linesPerFunction, random, out);
+        }
+    }
+
+    /*
+        Writes one function taking one argument. Every statement leaves the stack as it found it, and the function
+        calls the next function in its chain half way through its body
+    */
+    private void writeFunction(int global, long targetLines, Random random, Consumer<String> out) {
+        String name = functionName(global);
+        boolean callsNext = global % callDepth < callDepth - 1 && global + 1 < fileCount * functionsPerFile;
+        out.accept("function " + name + " " + LOCALS);
+        long lines = 1;
+        int labelCounter = 0;
+        boolean called = false;
+        while (lines < targetLines - 2) {
+            if (callsNext && !called && lines >= targetLines / 2) {
+                out.accept("push local 0");
+                out.accept("call " + functionName(global + 1) + " 1");
+                out.accept("pop local 1");
+                lines += 3;
+                called = true;
+            } else if (random.nextDouble() < comparisonDensity) {
+                String label = name + "$L" + labelCounter++;
+                out.accept(randomPush(random));
+                out.accept(randomPush(random));
+                out.accept(COMPARISON_OPS[random.nextInt(COMPARISON_OPS.length)]);
+                out.accept("if-goto " + label);
+                out.accept("push constant " + random.nextInt(32768));
+                out.accept("pop local " + random.nextInt(LOCALS));
+                out.accept("label " + label);
+                lines += 7;
+            } else {
+                out.accept(randomPush(random));
+                out.accept(randomPush(random));
+                out.accept(BINARY_OPS[random.nextInt(BINARY_OPS.length)]);
+                lines += 3;
+                if (random.nextInt(4) == 0) {
+                    out.accept(random.nextBoolean() ? Parser.NEG : Parser.NOT);
+                    lines++;
+                }
+                out.accept(randomPop(random));
+                lines++;
+            }
+        }
+        if (callsNext && !called) {
+            out.accept("push local 0");
+            out.accept("call " + functionName(global + 1) + " 1");
+            out.accept("pop local 1");
+        }
+        out.accept("push local 1");
+        out.accept(Parser.RETURN);
+    }
+
+    private String randomPush(Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return "push argument 0";
+            case 1:
+                return "push local " + random.nextInt(LOCALS);
+            case 2:
+                return "push static " + random.nextInt(STATICS_PER_FILE);
+            case 3:
+                return "push temp " + random.nextInt(TEMPS);
+            default:
+                return "push constant " + random.nextInt(32768);
+        }
+    }
+
+    private String randomPop(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return "pop local " + random.nextInt(LOCALS);
+            case 1:
+                return "pop static " + random.nextInt(STATICS_PER_FILE);
+            default:
+                return "pop temp " + random.nextInt(TEMPS);
+        }
+    }
+
+    private String functionName(int global) {
+        return GEN_PREFIX + (global / functionsPerFile) + ".f" + (global % functionsPerFile);
+    }
+
+    /**
+     * Writes a generated program to a directory.
+     *
+     * @param args output directory, target line count, then optionally file count, functions per file, call depth,
+     *             comparison density, and seed
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: VMProgramGenerator <output dir> <lines> [files] [functions per file] [call depth] [comparison density] [seed]");
+            System.exit(1);
+        }
+        VMProgramGenerator generator = new VMProgramGenerator(
+                args.length > 2 ? Integer.parseInt(args[2]) : 4,
+                args.length > 3 ? Integer.parseInt(args[3]) : 16,
+                args.length > 4 ? Integer.parseInt(args[4]) : 4,
+                args.length > 5 ? Double.parseDouble(args[5]) : 0.2,
+                args.length > 6 ? Long.parseLong(args[6]) : 1);
+        try {
+            generator.writeTo(Paths.get(args[0]), Long.parseLong(args[1]));
+        } catch (IOException e) {
+            System.out.println("Unable to write generated program to: " + args[0]);
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}